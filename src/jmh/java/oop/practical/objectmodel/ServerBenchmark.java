@@ -0,0 +1,98 @@
+package oop.practical.objectmodel;
+
+import oop.practical.objectmodel.interpreter.EvaluateException;
+import oop.practical.objectmodel.interpreter.Interpreter;
+import oop.practical.objectmodel.lisp.Lisp;
+import oop.practical.objectmodel.lisp.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip latency of a request on one of many concurrently open
+ * sessions. Sample time mode reports the latency percentiles (p0.50,
+ * p0.99, ...). Each session holds a socket on both ends, so the open file
+ * limit (ulimit -n) must exceed twice the number of sessions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ServerBenchmark {
+
+    private static final byte[] REQUEST = "(.norm (point 3 4))\n".getBytes(StandardCharsets.UTF_8);
+
+    @Param("10000")
+    private int sessions;
+
+    private Server server;
+    private Thread thread;
+    private BlockingQueue<Session> idle;
+
+    private record Session(SocketChannel channel, ByteBuffer buffer) {}
+
+    @Setup
+    public void setup() throws IOException, ParseException, EvaluateException {
+        var global = new Interpreter();
+        global.visit(Lisp.parse("(def (point x y) (object [x x] [y y] [(.norm) (+ (* x x) (* y y))]))"));
+        server = new Server(global, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), Duration.ofSeconds(10));
+        thread = Thread.ofVirtual().start(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        idle = new ArrayBlockingQueue<>(sessions);
+        for (int i = 0; i < sessions; i++) {
+            idle.add(new Session(SocketChannel.open(server.getAddress()), ByteBuffer.allocate(64)));
+        }
+    }
+
+    @TearDown
+    public void teardown() throws IOException, InterruptedException {
+        for (Session session : idle) {
+            session.channel().close();
+        }
+        server.close();
+        thread.join();
+    }
+
+    /**
+     * Sends a request on the least recently used session and waits for the
+     * response line.
+     */
+    @Benchmark
+    public int request() throws IOException, InterruptedException {
+        var session = idle.take();
+        try {
+            session.channel().write(ByteBuffer.wrap(REQUEST));
+            var buffer = session.buffer().clear();
+            while (buffer.position() == 0 || buffer.get(buffer.position() - 1) != '\n') {
+                if (session.channel().read(buffer) == -1) {
+                    throw new IOException("Session closed.");
+                }
+            }
+            return buffer.position();
+        } finally {
+            idle.add(session);
+        }
+    }
+
+}
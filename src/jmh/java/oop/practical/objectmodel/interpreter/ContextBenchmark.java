@@ -0,0 +1,61 @@
+package oop.practical.objectmodel.interpreter;
+
+import oop.practical.objectmodel.lisp.Ast;
+import oop.practical.objectmodel.lisp.Lisp;
+import oop.practical.objectmodel.lisp.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read mostly workloads evaluated by per-thread contexts of one shared
+ * interpreter (see Interpreter.context). Run with -t to compare throughput
+ * across thread counts, e.g. -t 1 and -t max.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ContextBenchmark {
+
+    private Interpreter global;
+
+    @State(Scope.Thread)
+    public static class Context {
+
+        private Interpreter interpreter;
+        private Ast functions;
+        private Ast prototypes;
+
+        @Setup
+        public void setup(ContextBenchmark benchmark) throws ParseException {
+            interpreter = benchmark.global.context();
+            functions = Lisp.parse("(h 1)");
+            prototypes = Lisp.parse("(do" + " (.method leaf)".repeat(100) + ")");
+        }
+
+    }
+
+    @Setup
+    public void setup() throws ParseException, EvaluateException {
+        global = new Interpreter();
+        global.visit(Lisp.parse(InterpreterBenchmark.PRELUDE));
+        global.visit(Lisp.parse("(def leaf " + "(object [prototype ".repeat(32) + "(object [(.method) 1])" + "])".repeat(32) + ")"));
+    }
+
+    @Benchmark
+    public RuntimeValue functions(Context context) throws EvaluateException {
+        return context.interpreter.visit(context.functions);
+    }
+
+    @Benchmark
+    public RuntimeValue prototypes(Context context) throws EvaluateException {
+        return context.interpreter.visit(context.prototypes);
+    }
+
+}
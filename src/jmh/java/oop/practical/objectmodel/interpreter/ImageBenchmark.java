@@ -0,0 +1,62 @@
+package oop.practical.objectmodel.interpreter;
+
+import oop.practical.objectmodel.lisp.Lisp;
+import oop.practical.objectmodel.lisp.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup cost of a library of functions and prototype objects, either
+ * parsed and evaluated from source or restored from an image.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ImageBenchmark {
+
+    private String library;
+    private Path image;
+
+    @Setup
+    public void setup() throws IOException, ParseException, EvaluateException {
+        var builder = new StringBuilder("(do\n");
+        for (int i = 0; i < 2_000; i++) {
+            builder.append("  (def (function").append(i).append(" x y) (+ (* x ").append(i).append(") (- y 1.5)))\n");
+            builder.append("  (def Object").append(i).append(" (object Object").append(i)
+                .append(" [prototype ").append(i == 0 ? "Object" : "Object" + (i - 1)).append("] [field ").append(i)
+                .append("] [(.method z) (function").append(i).append(" field z)]))\n");
+        }
+        library = builder.append(")\n").toString();
+        image = Files.createTempFile("image", ".bin");
+        evaluate().snapshot(image);
+    }
+
+    @TearDown
+    public void teardown() throws IOException {
+        Files.delete(image);
+    }
+
+    @Benchmark
+    public Interpreter evaluate() throws ParseException, EvaluateException {
+        var interpreter = new Interpreter();
+        interpreter.visit(Lisp.parse(library));
+        return interpreter;
+    }
+
+    @Benchmark
+    public Interpreter restore() throws IOException {
+        return Interpreter.restore(image);
+    }
+
+}
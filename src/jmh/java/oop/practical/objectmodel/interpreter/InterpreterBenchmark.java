@@ -0,0 +1,219 @@
+package oop.practical.objectmodel.interpreter;
+
+import oop.practical.objectmodel.lisp.Ast;
+import oop.practical.objectmodel.lisp.Lisp;
+import oop.practical.objectmodel.lisp.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InterpreterBenchmark {
+
+    /**
+     * The language has no conditionals, so recursion terminates through
+     * dispatch: .sum on a Cons recurses into next, while Nil returns 0.
+     */
+    static final String PRELUDE = """
+        (do
+          (def (square x) (* x x))
+          (def (f x) (+ (square x) 1))
+          (def (g x) (f (f (f (f x)))))
+          (def (h x) (g (g (g (g x)))))
+          (def (third x) (* x (/ 1 3)))
+          (def Nil (object Nil [(.sum) 0]))
+          (def Cons (object Cons [(.sum) (+ value (.sum next))]))
+          (def (cons value next) (object [prototype Cons] [value value] [next next]))
+          (def (point x y) (object [x x] [y y] [(.norm) (+ (* x x) (* y y))])))
+        """;
+
+    private Interpreter interpreter;
+    private Interpreter parallel;
+    private Interpreter optimized;
+    private Interpreter cached;
+    private Lisp.Cache asts;
+    private String snippet;
+    private Ast arithmetic;
+    private Ast arithmeticOptimized;
+    private Ast functions;
+    private Ast calls;
+    private Ast recursion;
+    private Ast prototypes;
+    private Ast allocation;
+    private Ast setters;
+    private Ast independent;
+    private Ast thirds;
+    private List<String> scripts;
+
+    @Setup
+    public void setup() throws ParseException, EvaluateException {
+        interpreter = new Interpreter();
+        interpreter.visit(Lisp.parse(PRELUDE));
+        interpreter.visit(Lisp.parse("(def list " + "(cons 1 ".repeat(100) + "Nil" + ")".repeat(100) + ")"));
+        interpreter.visit(Lisp.parse("(def leaf " + "(object [prototype ".repeat(32) + "(object [(.method) 1])" + "])".repeat(32) + ")"));
+        arithmetic = Lisp.parse("(+ (* 3 4 5) (- 100 7 2) (/ 144 12) (* 1.5 2.5) (/ 1 3))");
+        arithmeticOptimized = Optimizer.optimize(arithmetic);
+        functions = Lisp.parse("(h 1)");
+        calls = Lisp.parse("(do" + " (g 0)".repeat(100) + ")");
+        recursion = Lisp.parse("(.sum list)");
+        prototypes = Lisp.parse("(do" + " (.method leaf)".repeat(100) + ")");
+        allocation = Lisp.parse("(do" + " (.norm (point 3 4))".repeat(100) + ")");
+        interpreter.visit(Lisp.parse("(def (touch) (do (.z= (point 3 4) 5) (.method leaf)))"));
+        setters = Lisp.parse("(do" + " (touch)".repeat(100) + ")");
+        independent = Lisp.parse("(+" + " (.sum list)".repeat(8) + ")");
+        parallel = interpreter.parallel(ForkJoinPool.commonPool());
+        thirds = Lisp.parse("(do" + " (third 2)".repeat(100) + ")");
+        optimized = new Interpreter();
+        optimized.visit(Optimizer.optimize(Lisp.parse(PRELUDE)));
+        cached = interpreter.cached(1_000);
+        asts = Lisp.cache(1_000);
+        snippet = "(do (.norm (point 3 4)) (g 2) (+ (* 3 4) (- 10 2)) (.method leaf) (.x (object [x 1] [y 2])))";
+        scripts = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            var script = new StringBuilder("(do");
+            for (int j = 0; j < 20; j++) {
+                var name = "k" + i + "_" + j;
+                script.append(" (def (").append(name).append(" x) (+ (g x) 1.5)) (").append(name).append(" ").append(j).append(")");
+            }
+            scripts.add(script.append(")").toString());
+        }
+    }
+
+    @Benchmark
+    public RuntimeValue arithmetic() throws EvaluateException {
+        return interpreter.visit(arithmetic);
+    }
+
+    /**
+     * Optimizing folds the whole expression, see Optimizer.
+     */
+    @Benchmark
+    public RuntimeValue arithmeticOptimized() throws EvaluateException {
+        return interpreter.visit(arithmeticOptimized);
+    }
+
+    @Benchmark
+    public RuntimeValue functions() throws EvaluateException {
+        return interpreter.visit(functions);
+    }
+
+    @Benchmark
+    public RuntimeValue calls() throws EvaluateException {
+        return interpreter.visit(calls);
+    }
+
+    @Benchmark
+    public RuntimeValue recursion() throws EvaluateException {
+        return interpreter.visit(recursion);
+    }
+
+    @Benchmark
+    public RuntimeValue prototypes() throws EvaluateException {
+        return interpreter.visit(prototypes);
+    }
+
+    @Benchmark
+    public RuntimeValue allocation() throws EvaluateException {
+        return interpreter.visit(allocation);
+    }
+
+    /**
+     * Adds a field to a new point with a setter before each prototype chain
+     * lookup of touch, which must still hit its cache.
+     */
+    @Benchmark
+    public RuntimeValue setters() throws EvaluateException {
+        return interpreter.visit(setters);
+    }
+
+    @Benchmark
+    public RuntimeValue thirds() throws EvaluateException {
+        return interpreter.visit(thirds);
+    }
+
+    /**
+     * Calls third with (/ 1 3) folded in its body, see Optimizer.
+     */
+    @Benchmark
+    public RuntimeValue thirdsOptimized() throws EvaluateException {
+        return optimized.visit(thirds);
+    }
+
+    /**
+     * Parses, compiles and evaluates the snippet, see snippetCached and
+     * snippetCompiled.
+     */
+    @Benchmark
+    public RuntimeValue snippet() throws ParseException, EvaluateException {
+        return interpreter.visit(Lisp.parse(snippet));
+    }
+
+    /**
+     * Compiles and evaluates the ast of the snippet cached by a Lisp.Cache.
+     */
+    @Benchmark
+    public RuntimeValue snippetCached() throws ParseException, EvaluateException {
+        return interpreter.visit(asts.parse(snippet));
+    }
+
+    /**
+     * Evaluates the nodes cached for the ast of the snippet, see
+     * Interpreter.cached.
+     */
+    @Benchmark
+    public RuntimeValue snippetCompiled() throws ParseException, EvaluateException {
+        return cached.visit(asts.parse(snippet));
+    }
+
+    /**
+     * Parses and evaluates each script in turn, see batch.
+     */
+    @Benchmark
+    public RuntimeValue sequential() throws ParseException, EvaluateException {
+        var interpreter = this.interpreter.fork();
+        RuntimeValue result = null;
+        for (String script : scripts) {
+            result = interpreter.visit(Lisp.parse(script));
+        }
+        return result;
+    }
+
+    /**
+     * Parses the scripts on the common pool while evaluating them, which
+     * only overlaps with more than one CPU.
+     */
+    @Benchmark
+    public RuntimeValue batch() throws InterruptedException {
+        var results = new ArrayList<Interpreter.Result>(scripts.size());
+        interpreter.fork().batch(scripts.iterator(), ForkJoinPool.commonPool(), 16, results::add);
+        if (results.getLast().error() != null) {
+            throw new AssertionError(results.getLast().error());
+        }
+        return results.getLast().value();
+    }
+
+    @Benchmark
+    public RuntimeValue independent() throws EvaluateException {
+        return interpreter.visit(independent);
+    }
+
+    /**
+     * Evaluates the independent sums in parallel, see Scheduler.
+     */
+    @Benchmark
+    public RuntimeValue independentParallel() throws EvaluateException {
+        return parallel.visit(independent);
+    }
+
+}
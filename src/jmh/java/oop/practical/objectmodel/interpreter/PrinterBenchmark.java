@@ -0,0 +1,57 @@
+package oop.practical.objectmodel.interpreter;
+
+import oop.practical.objectmodel.lisp.Ast;
+import oop.practical.objectmodel.lisp.Lisp;
+import oop.practical.objectmodel.lisp.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Printing an object of 100 fields, each a nested object of 10 fields,
+ * unchanged (cached) or after mutating one nested object.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PrinterBenchmark {
+
+    private Interpreter interpreter;
+    private RuntimeValue object;
+    private Ast mutation;
+
+    @Setup
+    public void setup() throws ParseException, EvaluateException {
+        interpreter = new Interpreter();
+        var inner = new StringBuilder("(object Inner");
+        for (int i = 0; i < 10; i++) {
+            inner.append(" [field").append(i).append(" 1.5]");
+        }
+        inner.append(")");
+        var builder = new StringBuilder("(object Outer");
+        for (int i = 0; i < 100; i++) {
+            builder.append(" [field").append(i).append(" ").append(inner).append("]");
+        }
+        interpreter.visit(Lisp.parse("(def outer " + builder.append(")") + ")"));
+        object = interpreter.visit(Lisp.parse("outer"));
+        mutation = Lisp.parse("(.field0= (.field50 outer) 2)");
+    }
+
+    @Benchmark
+    public String cached() {
+        return object.toString();
+    }
+
+    @Benchmark
+    public String mutated() throws EvaluateException {
+        interpreter.visit(mutation);
+        return object.toString();
+    }
+
+}
@@ -0,0 +1,168 @@
+package oop.practical.objectmodel.lisp;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LispBenchmark {
+
+    private String source;
+    private String large;
+    private String snippet;
+    private Lisp.Cache cache;
+    private Path binary;
+    private Ast parsed;
+    private Path written;
+
+    /**
+     * Counts the characters (bytes, as scripts are ASCII) lexed by
+     * lexLarge, reported by JMH per second (i.e. divide by 10^6 for MB/s).
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+
+    }
+
+    @Setup
+    public void setup() throws ParseException, IOException {
+        source = script(1_000);
+        large = script(100_000);
+        snippet = script(10);
+        cache = Lisp.cache(1_000);
+        binary = Files.createTempFile("large", ".ast");
+        parsed = Lisp.parse(large);
+        Lisp.write(parsed, binary);
+        written = Files.createTempFile("written", ".ast");
+    }
+
+    @TearDown
+    public void teardown() throws IOException {
+        Files.delete(binary);
+        Files.delete(written);
+    }
+
+    @Benchmark
+    public long[] lex() {
+        return new Lexer(source).lex();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long[] lexLarge(Bytes bytes) {
+        bytes.bytes += large.length();
+        return new Lexer(large).lex();
+    }
+
+    /**
+     * Lexes and parses, as tokens are only valid while they are lexed.
+     */
+    @Benchmark
+    public Ast parse() throws ParseException {
+        return Lisp.parse(source);
+    }
+
+    @Benchmark
+    public Ast parseSnippet() throws ParseException {
+        return Lisp.parse(snippet);
+    }
+
+    /**
+     * Parses the snippet through a cache, hitting after the first call, as a
+     * service evaluating the same scripts repeatedly would.
+     */
+    @Benchmark
+    public Ast parseCached() throws ParseException {
+        return cache.parse(new String(snippet));
+    }
+
+    /**
+     * Parses the large script, whose allocation (with -prof gc) bounds the
+     * footprint of the parsed asts, such as the positions they carry.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Ast parseLarge() throws ParseException {
+        return Lisp.parse(large);
+    }
+
+    /**
+     * Writes the large script in its binary form (see loadLarge).
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Path writeLarge() throws IOException {
+        Lisp.write(parsed, written);
+        return written;
+    }
+
+    /**
+     * Loads the large script from its binary form, accessing every ast so
+     * all of it is decoded (see parseLarge).
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int loadLarge() throws IOException {
+        return count(Lisp.load(binary));
+    }
+
+    /**
+     * Loads the large script, only accessing its top-level forms.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int loadLargeLazy() throws IOException {
+        return ((Ast.Function) Lisp.load(binary)).arguments().size();
+    }
+
+    private static int count(Ast ast) {
+        var count = 1;
+        if (ast instanceof Ast.Function function) {
+            for (Ast argument : function.arguments()) {
+                count += count(argument);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Generates a script of the given number of top-level forms, mixing
+     * definitions, arithmetic, objects and method calls.
+     */
+    static String script(int forms) {
+        var builder = new StringBuilder("(do\n");
+        for (int i = 0; i < forms; i++) {
+            builder.append(switch (i % 4) {
+                case 0 -> "  (def (function" + i + " x y) (+ (* x 2) (- y 1.5) :atom))\n";
+                case 1 -> "  (def object" + i + " (object Name [field 1] [(.method z) (+ field z)]))\n";
+                case 2 -> "  (.method object" + (i - 1) + " (function" + (i - 2) + " 1 2))\n";
+                default -> "  (set! object" + (i - 2) + " (/ 1e10 -3))\n";
+            });
+        }
+        return builder.append(")\n").toString();
+    }
+
+}
@@ -2,33 +2,184 @@ package oop.practical.objectmodel;
 
 import oop.practical.objectmodel.interpreter.EvaluateException;
 import oop.practical.objectmodel.interpreter.Interpreter;
+import oop.practical.objectmodel.interpreter.Profiler;
+import oop.practical.objectmodel.interpreter.Sampler;
+import oop.practical.objectmodel.lisp.Ast;
 import oop.practical.objectmodel.lisp.Lisp;
 import oop.practical.objectmodel.lisp.ParseException;
+import oop.practical.objectmodel.lisp.Position;
 
-import java.util.Scanner;
+import javax.management.JMException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 public class Main {
 
+    /**
+     * Evaluates each top-level form read from stdin, which may span multiple
+     * lines, until the end of input or an exit form. A line of just :profile
+     * is a command printing the statistics recorded by the Profiler, which is
+     * handled before parsing (see Commands).
+     *
+     * With --server <port|path> [timeout ms], instead serves sessions over a
+     * local TCP port or Unix domain socket, see Server.
+     *
+     * The Profiler is registered with JMX, where it can be enabled, and is
+     * enabled from the start with --profile. With --sample <path>, a Sampler
+     * runs until exit and then writes the collapsed stacks to the path. With
+     * --parallel, independent arguments of calls are evaluated in parallel
+     * (see Interpreter.parallel). These options come before any others.
+     */
     public static void main(String[] args) {
+        try {
+            Profiler.register();
+        } catch (JMException e) {
+            System.out.println("Error registering profiler: " + e.getMessage());
+        }
+        String samples = null;
         var interpreter = new Interpreter();
-        var scanner = new Scanner(System.in);
-        while (true) {
-            var input = scanner.nextLine();
-            if (input.equals("exit")) {
-                break;
+        while (args.length >= 1 && args[0].startsWith("--") && !args[0].equals("--server")) {
+            if (args[0].equals("--profile")) {
+                Profiler.INSTANCE.setEnabled(true);
+                args = Arrays.copyOfRange(args, 1, args.length);
+            } else if (args[0].equals("--parallel")) {
+                interpreter = interpreter.parallel(ForkJoinPool.commonPool());
+                args = Arrays.copyOfRange(args, 1, args.length);
+            } else if (args[0].equals("--sample") && args.length >= 2) {
+                samples = args[1];
+                args = Arrays.copyOfRange(args, 2, args.length);
+            } else {
+                System.out.println("Unknown option: " + args[0]);
+                return;
             }
+        }
+        if (samples == null) {
+            run(interpreter, args);
+            return;
+        }
+        try (var sampler = new Sampler(Duration.ofMillis(10))) {
+            run(interpreter, args);
+            sampler.stop();
+            try (var writer = Files.newBufferedWriter(Path.of(samples))) {
+                sampler.write(writer);
+            } catch (IOException e) {
+                System.out.println("Error writing samples: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void run(Interpreter interpreter, String[] args) {
+        if (args.length >= 2 && args[0].equals("--server")) {
+            serve(interpreter, args);
+            return;
+        }
+        var forms = Lisp.forms(new Commands(new BufferedReader(new InputStreamReader(System.in))));
+        while (true) {
             try {
-                var ast = Lisp.parse(input);
-                var result = interpreter.visit(ast);
-                System.out.println(result);
+                var ast = forms.next();
+                if (ast == null || isExit(ast)) {
+                    break;
+                }
+                System.out.println(evaluate(interpreter, ast));
             } catch (ParseException e) {
-                System.out.println("Error parsing input: " + e.getMessage());
-            } catch (EvaluateException e) {
-                System.out.println("Error evaluating expression: " + e.getMessage());
-            } catch (Exception e) {
-                System.out.println("Unexpected exception: " + e.getClass().getName() + ", " + e.getMessage());
+                System.out.println(error("parsing input", e.getPosition(), e.getMessage()));
+            } catch (IOException e) {
+                System.out.println("Error reading input: " + e.getMessage());
+                break;
             }
         }
     }
 
+    private static void serve(Interpreter interpreter, String[] args) {
+        SocketAddress address = args[1].chars().allMatch(Character::isDigit)
+            ? new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(args[1]))
+            : UnixDomainSocketAddress.of(args[1]);
+        var timeout = Duration.ofMillis(args.length >= 3 ? Long.parseLong(args[2]) : 10_000);
+        try (var server = new Server(interpreter, address, timeout)) {
+            System.out.println("Serving on " + server.getAddress() + ".");
+            server.serve();
+        } catch (IOException e) {
+            System.out.println("Error serving: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Input of the REPL, which handles lines of a command (such as :profile)
+     * itself rather than passing them on to be parsed. Lines are read one at
+     * a time as the parser needs more input, so a command runs once the
+     * forms before it have been evaluated.
+     */
+    private static final class Commands extends Reader {
+
+        private final BufferedReader input;
+        private String line = "";
+        private int index = 0;
+
+        private Commands(BufferedReader input) {
+            this.input = input;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            while (index == line.length()) {
+                var next = input.readLine();
+                if (next == null) {
+                    return -1;
+                } else if (next.strip().equals(":profile")) {
+                    System.out.print(Profiler.INSTANCE.dump());
+                    continue;
+                }
+                line = next + "\n";
+                index = 0;
+            }
+            var read = Math.min(length, line.length() - index);
+            line.getChars(index, index + read, buffer, offset);
+            index += read;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+
+    }
+
+    static boolean isExit(Ast ast) {
+        return ast instanceof Ast.Variable variable && variable.name().equals("exit");
+    }
+
+    /**
+     * Evaluates the ast, returning the line to output for its result.
+     */
+    static String evaluate(Interpreter interpreter, Ast ast) {
+        try {
+            return interpreter.visit(ast).toString();
+        } catch (EvaluateException e) {
+            return error("evaluating expression", e.getPosition(), e.getMessage());
+        } catch (Exception e) {
+            return "Unexpected exception: " + e.getClass().getName() + ", " + e.getMessage();
+        }
+    }
+
+    /**
+     * Returns the line to output for an error while doing the action, with
+     * its source position (see Position) unless it is NONE.
+     */
+    static String error(String action, int position, String message) {
+        var at = position != Position.NONE ? " at " + Position.toString(position) : "";
+        return "Error " + action + at + ": " + message;
+    }
+
 }
@@ -0,0 +1,167 @@
+package oop.practical.objectmodel;
+
+import oop.practical.objectmodel.interpreter.Interpreter;
+import oop.practical.objectmodel.lisp.Ast;
+import oop.practical.objectmodel.lisp.Lisp;
+import oop.practical.objectmodel.lisp.ParseException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves evaluation sessions over a local TCP port or Unix domain socket.
+ * Each connection is a session that sends forms and receives one line per
+ * form, as Main outputs them, until it disconnects or sends exit. Sessions
+ * run on their own virtual thread with their own context of the shared
+ * global interpreter (see Interpreter.context).
+ *
+ * Evaluations running longer than the timeout are cancelled by
+ * interrupting the session's thread (see Closure), and respond with an
+ * error instead of a result.
+ */
+public final class Server implements Closeable {
+
+    /**
+     * Buffer size (in bytes) for writing each session's responses, which is
+     * kept small as idle sessions hold onto their buffers.
+     */
+    private static final int BUFFER = 1024;
+
+    private final Interpreter global;
+    private final Duration timeout;
+    private final ServerSocketChannel channel;
+    private final ExecutorService sessions = Executors.newVirtualThreadPerTaskExecutor();
+    private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform().daemon().factory());
+
+    public Server(Interpreter global, SocketAddress address, Duration timeout) throws IOException {
+        this.global = global;
+        this.timeout = timeout;
+        this.channel = ServerSocketChannel.open(address instanceof UnixDomainSocketAddress ? StandardProtocolFamily.UNIX : StandardProtocolFamily.INET);
+        try {
+            channel.bind(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    public SocketAddress getAddress() throws IOException {
+        return channel.getLocalAddress();
+    }
+
+    /**
+     * Accepts sessions until the server is closed.
+     */
+    public void serve() throws IOException {
+        while (true) {
+            SocketChannel client;
+            try {
+                client = channel.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            }
+            sessions.execute(() -> session(client));
+        }
+    }
+
+    private void session(SocketChannel client) {
+        var interpreter = global.context();
+        try (client; var forms = Lisp.forms(client); var output = Channels.newWriter(client, StandardCharsets.UTF_8.newEncoder(), BUFFER)) {
+            while (true) {
+                String response;
+                try {
+                    var ast = forms.next();
+                    if (ast == null || Main.isExit(ast)) {
+                        break;
+                    }
+                    response = evaluate(interpreter, ast);
+                } catch (ParseException e) {
+                    response = Main.error("parsing input", e.getPosition(), e.getMessage());
+                }
+                output.write(response);
+                output.write('\n');
+                output.flush();
+            }
+        } catch (IOException e) {
+            //the client disconnected or the server was closed, ending the session
+        }
+    }
+
+    private String evaluate(Interpreter interpreter, Ast ast) {
+        var deadline = new Deadline(Thread.currentThread());
+        var expiry = timer.schedule(deadline::expire, timeout.toNanos(), TimeUnit.NANOSECONDS);
+        String response;
+        try {
+            response = Main.evaluate(interpreter, ast);
+        } finally {
+            expiry.cancel(false);
+            if (!deadline.finish()) {
+                response = "Error evaluating expression: Timed out after " + timeout.toMillis() + "ms.";
+            }
+        }
+        return response;
+    }
+
+    @Override
+    public void close() throws IOException {
+        var address = channel.getLocalAddress();
+        channel.close();
+        sessions.shutdownNow();
+        timer.shutdownNow();
+        if (address instanceof UnixDomainSocketAddress unix) {
+            Files.deleteIfExists(unix.getPath());
+        }
+    }
+
+    /**
+     * Interrupts the thread evaluating if it expires before it is finished.
+     * Both are synchronized so the interrupt can never outlive (and cancel
+     * reading) the evaluation it was meant for.
+     */
+    private static final class Deadline {
+
+        private final Thread thread;
+        private boolean finished = false;
+        private boolean expired = false;
+
+        private Deadline(Thread thread) {
+            this.thread = thread;
+        }
+
+        private synchronized void expire() {
+            if (!finished) {
+                expired = true;
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * Returns whether the evaluation finished before expiring, clearing
+         * the interrupt status otherwise.
+         */
+        private synchronized boolean finish() {
+            finished = true;
+            if (expired) {
+                Thread.interrupted();
+            }
+            return !expired;
+        }
+
+    }
+
+}
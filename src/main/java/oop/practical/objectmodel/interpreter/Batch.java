@@ -0,0 +1,74 @@
+package oop.practical.objectmodel.interpreter;
+
+import oop.practical.objectmodel.lisp.Ast;
+import oop.practical.objectmodel.lisp.Lisp;
+import oop.practical.objectmodel.lisp.ParseException;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.function.Consumer;
+
+/**
+ * Pipelined evaluation of a batch of inputs (see Interpreter.batch), which
+ * are parsed on worker threads while the inputs before them are evaluated,
+ * in order, by the calling thread.
+ *
+ * The parses in flight form a bounded queue in input order: at most
+ * capacity inputs are read and parsed ahead of the one being evaluated, and
+ * no more are read until it is, so memory is bounded however many inputs
+ * there are and a slow evaluation (or consumer of results) holds back the
+ * parsers. Inputs are only read by the calling thread, so the iterator need
+ * not be thread-safe.
+ */
+final class Batch {
+
+    private Batch() {}
+
+    static void run(Interpreter interpreter, Iterator<String> inputs, Executor parsers, int capacity, Consumer<Interpreter.Result> results) throws InterruptedException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Expected a positive capacity, received " + capacity + ".");
+        }
+        var pending = new ArrayDeque<FutureTask<Ast>>(capacity);
+        try {
+            while (true) {
+                while (pending.size() < capacity && inputs.hasNext()) {
+                    var input = inputs.next();
+                    var parse = new FutureTask<>(() -> Lisp.parse(input));
+                    pending.add(parse);
+                    parsers.execute(parse);
+                }
+                var parse = pending.poll();
+                if (parse == null) {
+                    return;
+                }
+                results.accept(evaluate(interpreter, parse));
+            }
+        } finally {
+            //only reached with parses pending if evaluation was aborted
+            pending.forEach(parse -> parse.cancel(false));
+        }
+    }
+
+    private static Interpreter.Result evaluate(Interpreter interpreter, FutureTask<Ast> parse) throws InterruptedException {
+        Ast ast;
+        try {
+            ast = parse.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ParseException exception) {
+                return new Interpreter.Result(null, exception);
+            } else if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw (RuntimeException) e.getCause();
+        }
+        try {
+            return new Interpreter.Result(interpreter.visit(ast), null);
+        } catch (EvaluateException e) {
+            return new Interpreter.Result(null, e);
+        }
+    }
+
+}
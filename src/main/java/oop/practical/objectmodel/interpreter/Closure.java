@@ -0,0 +1,244 @@
+package oop.practical.objectmodel.interpreter;
+
+import java.util.List;
+
+/**
+ * Definition of a user defined function or method (see DefFunction and
+ * Node.method). Calls in tail position of the body, being the body itself
+ * or the last expression of a do in tail position, are evaluated by the
+ * loop in evaluate instead of recursively invoking the callee, so
+ * recursion through closures runs in constant Java stack.
+ *
+ * Invocations are counted until the closure is hot, after which it
+ * evaluates the body compiled by the HandleCompiler while that is valid
+ * (and calls are not being tracked, see Profiler.tracking).
+ */
+final class Closure implements RuntimeValue.Function.Definition {
+
+    private final Scope scope;
+    private final int[] parameters;
+    private final Shape layout;
+    private final Node body;
+    private int calls = 0;
+    private volatile HandleCompiler.Compiled compiled;
+
+    /**
+     * Methods have a null scope, as they are invoked with the receiver as
+     * the first argument and evaluate in a child of the receiver's scope.
+     */
+    Closure(Scope scope, int[] parameters, Shape layout, Node body) {
+        this.scope = scope;
+        this.parameters = parameters;
+        this.layout = layout;
+        this.body = body;
+    }
+
+    /**
+     * Returns the captured scope, or null for methods.
+     */
+    Scope scope() {
+        return scope;
+    }
+
+    int[] parameters() {
+        return parameters;
+    }
+
+    Shape layout() {
+        return layout;
+    }
+
+    Node body() {
+        return body;
+    }
+
+    /**
+     * Returns the body to evaluate for an invocation, counting it. Calls are
+     * counted without synchronization, so concurrent invocations may compile
+     * the body more than once, which is harmless.
+     */
+    Node code() {
+        if (Profiler.tracking()) {
+            return body; //compiled bodies bypass the profiled call sites
+        }
+        var compiled = this.compiled;
+        if (compiled != null) {
+            if (compiled.valid()) {
+                return compiled.body();
+            }
+            this.compiled = null;
+            calls = 0;
+        }
+        if (++calls == HandleCompiler.THRESHOLD) {
+            compiled = HandleCompiler.compile(this);
+            this.compiled = compiled;
+            return compiled.body();
+        }
+        return body;
+    }
+
+    @Override
+    public RuntimeValue invoke(List<RuntimeValue> arguments) throws EvaluateException {
+        return invoke(arguments.toArray(RuntimeValue[]::new));
+    }
+
+    @Override
+    public RuntimeValue invoke(RuntimeValue[] arguments) throws EvaluateException {
+        return evaluate(code(), enter(arguments));
+    }
+
+    @Override
+    public RuntimeValue invoke0() throws EvaluateException {
+        return evaluate(code(), enter());
+    }
+
+    @Override
+    public RuntimeValue invoke1(RuntimeValue first) throws EvaluateException {
+        return evaluate(code(), enter(first));
+    }
+
+    @Override
+    public RuntimeValue invoke2(RuntimeValue first, RuntimeValue second) throws EvaluateException {
+        return evaluate(code(), enter(first, second));
+    }
+
+    @Override
+    public RuntimeValue invoke3(RuntimeValue first, RuntimeValue second, RuntimeValue third) throws EvaluateException {
+        return evaluate(code(), enter(first, second, third));
+    }
+
+    /**
+     * Returns the frame the body is evaluated in with the given arguments.
+     * The fixed-arity forms bind the arguments directly to the frame.
+     */
+    Scope enter(RuntimeValue[] arguments) throws EvaluateException {
+        var frame = frame(arguments.length, arguments.length > 0 ? arguments[0] : null);
+        for (int i = 0; i < arguments.length; i++) {
+            bind(frame, i, arguments[i]);
+        }
+        return frame;
+    }
+
+    Scope enter() throws EvaluateException {
+        return frame(0, null);
+    }
+
+    Scope enter(RuntimeValue first) throws EvaluateException {
+        var frame = frame(1, first);
+        bind(frame, 0, first);
+        return frame;
+    }
+
+    Scope enter(RuntimeValue first, RuntimeValue second) throws EvaluateException {
+        var frame = frame(2, first);
+        bind(frame, 0, first);
+        bind(frame, 1, second);
+        return frame;
+    }
+
+    Scope enter(RuntimeValue first, RuntimeValue second, RuntimeValue third) throws EvaluateException {
+        var frame = frame(3, first);
+        bind(frame, 0, first);
+        bind(frame, 1, second);
+        bind(frame, 2, third);
+        return frame;
+    }
+
+    private Scope frame(int arguments, RuntimeValue first) throws EvaluateException {
+        var offset = scope == null ? 1 : 0;
+        if (arguments - offset != parameters.length) {
+            throw new EvaluateException("Expected " + parameters.length + " arguments, received " + (arguments - offset) + ".");
+        }
+        var parent = scope != null ? scope : ((RuntimeValue.Object) first).scope();
+        return new Scope(parent, layout);
+    }
+
+    /**
+     * Binds the i-th argument, which for methods is the receiver if 0.
+     */
+    private void bind(Scope frame, int i, RuntimeValue argument) {
+        var parameter = scope == null ? i - 1 : i;
+        if (parameter >= 0) {
+            frame.set(parameters[parameter], argument);
+        }
+    }
+
+    /**
+     * Evaluates node in tail position: a call to another closure replaces
+     * the node and scope being evaluated rather than being invoked.
+     *
+     * As every loop (being recursion) passes through here, this is also
+     * where evaluation is cancelled once the thread is interrupted (or the
+     * parallel argument it evaluates is cancelled, see Scheduler). The
+     * interrupt status is left set for the canceller to clear.
+     */
+    private static RuntimeValue evaluate(Node node, Scope scope) throws EvaluateException {
+        try {
+            while (true) {
+                if (Thread.currentThread().isInterrupted() || Scheduler.cancelled()) {
+                    throw new EvaluateException("Evaluation interrupted.");
+                } else if (node instanceof Node.Do block && block.expressions().length > 0) {
+                    var expressions = block.expressions();
+                    for (int i = 0; i < expressions.length - 1; i++) {
+                        expressions[i].evaluate(scope);
+                    }
+                    node = expressions[expressions.length - 1];
+                } else if (node instanceof Node.Call call) {
+                    var function = call.function(scope);
+                    if (!(function.definition() instanceof Closure closure)) {
+                        return call.invoke(function, scope);
+                    }
+                    scope = call.enter(closure, scope);
+                    if (Profiler.tracking()) {
+                        Profiler.tail(Profiler.function(function.name()), call.position());
+                    }
+                    node = closure.code();
+                } else if (node instanceof Node.Parallel parallel) {
+                    var call = parallel.call();
+                    var function = call.function(scope);
+                    var arguments = Scheduler.arguments(parallel, scope);
+                    if (!(function.definition() instanceof Closure closure)) {
+                        return call.invoke(function, arguments);
+                    }
+                    scope = closure.enter(arguments);
+                    if (Profiler.tracking()) {
+                        Profiler.tail(Profiler.function(function.name()), call.position());
+                    }
+                    node = closure.code();
+                } else if (node instanceof Node.MethodCall call) {
+                    var receiver = call.receiver(scope);
+                    var arguments = call.arguments();
+                    RuntimeValue first = null;
+                    RuntimeValue second = null;
+                    RuntimeValue[] all = null;
+                    if (arguments.length > 2) {
+                        all = call.arguments(receiver, scope);
+                    } else if (arguments.length > 0) {
+                        first = arguments[0].evaluate(scope);
+                        second = arguments.length == 2 ? arguments[1].evaluate(scope) : null;
+                    }
+                    var method = call.method().lookup(receiver);
+                    if (!(method instanceof RuntimeValue.Function function) || !(function.definition() instanceof Closure closure)) {
+                        return call.dispatch(method, receiver, first, second, all);
+                    }
+                    scope = call.enter(closure, receiver, first, second, all);
+                    if (Profiler.tracking()) {
+                        Profiler.tail(Profiler.method(call.name()), call.position());
+                    }
+                    node = closure.code();
+                } else {
+                    return node.evaluate(scope);
+                }
+            }
+        } catch (EvaluateException e) {
+            //the call being evaluated, which bypassed its node's evaluate
+            throw switch (node) {
+                case Node.Call call -> e.at(call.position());
+                case Node.MethodCall call -> e.at(call.position());
+                case Node.Parallel parallel -> e.at(parallel.call().position());
+                default -> e;
+            };
+        }
+    }
+
+}
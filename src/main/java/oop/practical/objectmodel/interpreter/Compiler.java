@@ -0,0 +1,260 @@
+package oop.practical.objectmodel.interpreter;
+
+import oop.practical.objectmodel.lisp.Ast;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiles an Ast into a tree of executable Nodes. Builtin forms and
+ * method/function dispatch are decided here once, and function bodies are
+ * compiled when their definition is compiled so every invocation reuses
+ * the same nodes.
+ *
+ * Invalid forms compile to a Node.Fail, which throws when evaluated; this
+ * keeps errors (and any side effects evaluated before them) in the same
+ * order as evaluating the Ast directly.
+ *
+ * Variables are lexically addressed: function and method bodies evaluate in
+ * array-backed frames whose layout (parameters followed by every name the
+ * body defines with def/set!) is fixed here, so references to names of
+ * enclosing frames compile to a (depth, index) pair. Anything else is
+ * resolved by name, skipping the frames known not to define it.
+ */
+final class Compiler {
+
+    /**
+     * Compile-time view of a frame. Method frames are opaque since their
+     * parent is the receiver's scope, which is only known at runtime.
+     */
+    private record Environment(
+        Shape layout,
+        boolean opaque,
+        Environment parent
+    ) {}
+
+    static Node compile(Ast ast) {
+        return compile(ast, null);
+    }
+
+    private static Node compile(Ast ast, Environment environment) {
+        return switch (ast) {
+            case Ast.Number number -> new Node.Constant(Functions.number(number.value()));
+            //Our language doesn't have strings so this is sufficient, but the
+            //better practice would be to define a proper type.
+            case Ast.Atom atom -> new Node.Constant(new RuntimeValue.Primitive(":" + atom.name()));
+            case Ast.Variable variable -> resolve(variable.name(), environment);
+            case Ast.Function function -> compile(function, environment);
+        };
+    }
+
+    private static Node compile(Ast.Function ast, Environment environment) {
+        return switch (ast.name()) {
+            case "do" -> compileBuiltinDo(ast, environment);
+            case "def" -> compileBuiltinDef(ast, environment);
+            case "set!" -> compileBuiltinSet(ast, environment);
+            case "object" -> compileBuiltinObject(ast, environment);
+            default -> ast.name().startsWith(".") ? compileMethod(ast, environment) : compileFunction(ast, environment);
+        };
+    }
+
+    /**
+     *  - Do: (do [expressions])
+     */
+    private static Node compileBuiltinDo(Ast.Function ast, Environment environment) {
+        return new Node.Do(compile(ast.arguments(), environment));
+    }
+
+    /**
+     *  - Variable: (def <name> <value>)
+     *  - Function: (def (<name> [parameters]) <body>)
+     */
+    private static Node compileBuiltinDef(Ast.Function ast, Environment environment) {
+        if (ast.arguments().size() != 2) {
+            return new Node.Fail("Builtin function def requires exactly 2 arguments.");
+        }
+        if (ast.arguments().getFirst() instanceof Ast.Variable variable) {
+            return new Node.Def(variable.name(), compile(ast.arguments().getLast(), environment));
+        } else if (ast.arguments().getFirst() instanceof Ast.Function function) {
+            var parameters = parameters(function);
+            if (parameters == null) {
+                return new Node.Fail("Invalid function parameter form for builtin function def.");
+            }
+            var layout = layout(parameters, ast.arguments().getLast());
+            var body = compile(ast.arguments().getLast(), new Environment(layout, false, environment));
+            return new Node.DefFunction(function.name(), slots(parameters, layout), layout, body);
+        } else {
+            return new Node.Fail("Invalid variable/function form for builtin function def.");
+        }
+    }
+
+    /**
+     * Variable: (set! <name> <value>)
+     */
+    private static Node compileBuiltinSet(Ast.Function ast, Environment environment) {
+        if (ast.arguments().size() != 2) {
+            return new Node.Fail("Builtin function set! requires exactly 2 arguments.");
+        } else if (ast.arguments().getFirst() instanceof Ast.Variable variable) {
+            return new Node.Set(variable.name(), compile(ast.arguments().getLast(), environment));
+        } else {
+            return new Node.Fail("Invalid variable form for builtin function set!.");
+        }
+    }
+
+    /**
+     *  - Field: (object [<name> <value>])
+     *  - Method: (object [(<.name> [arguments]) <body>])
+     *     - Note: Since all functions require a name (Ast.Variable) and the
+     *       first element of this list is an Ast.Function, the parser returns
+     *       an Ast.Function with an empty name (""). In other words:
+     *       new Ast.Function("", new Ast.Function(".name", arguments), body);
+     *
+     * Methods don't capture any scope (they evaluate in the receiver's), so
+     * they are created once here and shared by every object from this form.
+     */
+    private static Node compileBuiltinObject(Ast.Function ast, Environment environment) {
+        var arguments = ast.arguments();
+        String name = null;
+        if (!arguments.isEmpty() && arguments.getFirst() instanceof Ast.Variable variable) {
+            name = variable.name();
+            arguments = arguments.subList(1, arguments.size());
+        }
+        var keys = new String[arguments.size()];
+        var methods = new boolean[arguments.size()];
+        var values = new Node[arguments.size()];
+        for (int i = 0; i < arguments.size(); i++) {
+            if (!(arguments.get(i) instanceof Ast.Function member)) {
+                values[i] = new Node.Fail("Invalid field/method form for builtin function object.");
+            } else if (member.name().isEmpty()) {
+                if (member.arguments().size() != 2 || !(member.arguments().getFirst() instanceof Ast.Function signature) || !signature.name().startsWith(".")) {
+                    values[i] = new Node.Fail("Invalid method form for builtin function object.");
+                } else if (parameters(signature) == null) {
+                    values[i] = new Node.Fail("Invalid method parameter form for builtin function object.");
+                } else {
+                    var parameters = parameters(signature);
+                    var layout = layout(parameters, member.arguments().getLast());
+                    var body = compile(member.arguments().getLast(), new Environment(layout, true, null));
+                    keys[i] = signature.name();
+                    methods[i] = true;
+                    values[i] = new Node.Constant(Node.method(signature.name(), slots(parameters, layout), layout, body));
+                }
+            } else if (member.arguments().size() != 1) {
+                values[i] = new Node.Fail("Invalid field form for builtin function object.");
+            } else {
+                keys[i] = member.name();
+                values[i] = compile(member.arguments().getFirst(), environment);
+            }
+        }
+        return new Node.Object(name, keys, methods, values);
+    }
+
+    private static Node compileFunction(Ast.Function ast, Environment environment) {
+        var function = resolve(ast.name(), environment);
+        return new Node.Call(function, compile(ast.arguments(), environment), ast.position());
+    }
+
+    /**
+     *  - Method: (.<name> <receiver> [arguments])
+     *  - Getter: (.<field> <receiver>)
+     *  - Setter: (.<field>= <receiver> <value>)
+     */
+    private static Node compileMethod(Ast.Function ast, Environment environment) {
+        if (ast.arguments().isEmpty()) {
+            return new Node.Fail("Method " + ast.name() + " requires a receiver.");
+        }
+        var arguments = compile(ast.arguments().subList(1, ast.arguments().size()), environment);
+        var setter = ast.name().endsWith("=") && arguments.length == 1
+            ? ast.name().substring(1, ast.name().length() - 1)
+            : null;
+        return new Node.MethodCall(ast.name(), setter, compile(ast.arguments().getFirst(), environment), arguments,
+            new InlineCache(ast.name(), ast.name()), new InlineCache(ast.name().substring(1), ast.name()), ast.position());
+    }
+
+    private static Node[] compile(List<Ast> asts, Environment environment) {
+        var nodes = new Node[asts.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = compile(asts.get(i), environment);
+        }
+        return nodes;
+    }
+
+    private static Node.Variable resolve(String name, Environment environment) {
+        var depth = 0;
+        for (; environment != null; environment = environment.parent(), depth++) {
+            var index = environment.layout().indexOf(name);
+            if (index != -1) {
+                return new Node.Variable(name, depth, index);
+            } else if (environment.opaque()) {
+                return new Node.Variable(name, depth + 1, -1);
+            }
+        }
+        return new Node.Variable(name, depth, -1);
+    }
+
+    /**
+     * Returns the frame layout for a body: the parameters followed by the
+     * names defined in the body itself, excluding nested function/method
+     * bodies which have their own frames. Names assigned by set! are
+     * included since set! defines in the current scope.
+     */
+    private static Shape layout(String[] parameters, Ast body) {
+        var names = new LinkedHashSet<>(List.of(parameters));
+        locals(body, names);
+        var layout = Shape.ROOT;
+        for (String name : names) {
+            layout = layout.with(name);
+        }
+        return layout;
+    }
+
+    private static void locals(Ast ast, Set<String> names) {
+        if (!(ast instanceof Ast.Function function)) {
+            return;
+        }
+        var arguments = function.arguments();
+        if ((function.name().equals("def") || function.name().equals("set!")) && arguments.size() == 2) {
+            switch (arguments.getFirst()) {
+                case Ast.Variable variable -> names.add(variable.name());
+                case Ast.Function signature when function.name().equals("def") -> {
+                    names.add(signature.name());
+                    return;
+                }
+                default -> {}
+            }
+        } else if (function.name().equals("object")) {
+            for (Ast argument : arguments) {
+                if (argument instanceof Ast.Function member && !member.name().isEmpty()) {
+                    member.arguments().forEach(a -> locals(a, names));
+                }
+            }
+            return;
+        }
+        arguments.forEach(a -> locals(a, names));
+    }
+
+    private static int[] slots(String[] parameters, Shape layout) {
+        var slots = new int[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            slots[i] = layout.indexOf(parameters[i]);
+        }
+        return slots;
+    }
+
+    /**
+     * Returns the parameter names of a function/method signature, or null if
+     * any parameter is not a variable.
+     */
+    private static String[] parameters(Ast.Function signature) {
+        var parameters = new ArrayList<String>();
+        for (Ast parameter : signature.arguments()) {
+            if (!(parameter instanceof Ast.Variable variable)) {
+                return null;
+            }
+            parameters.add(variable.name());
+        }
+        return parameters.toArray(String[]::new);
+    }
+
+}
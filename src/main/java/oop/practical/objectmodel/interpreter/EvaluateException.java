@@ -1,9 +1,33 @@
 package oop.practical.objectmodel.interpreter;
 
+import oop.practical.objectmodel.lisp.Position;
+
 public final class EvaluateException extends Exception {
 
+    private int position = Position.NONE;
+
     public EvaluateException(String message) {
         super(message);
     }
 
+    /**
+     * Returns the position of the innermost call (or otherwise the
+     * top-level form) evaluated when thrown, see Position.
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * Sets the position if not already set by an inner call, returning this
+     * exception to rethrow. Positions are only attached as the exception
+     * propagates, so evaluation never tracks them otherwise.
+     */
+    EvaluateException at(int position) {
+        if (this.position == Position.NONE) {
+            this.position = position;
+        }
+        return this;
+    }
+
 }
@@ -1,43 +1,236 @@
 package oop.practical.objectmodel.interpreter;
 
 import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.util.ArrayList;
+import java.math.MathContext;
 import java.util.List;
 
+/**
+ * Arithmetic builtins. Integral values that fit in a long are represented
+ * as RuntimeValue.Integer and computed without allocating BigDecimals;
+ * once an operation overflows or involves a decimal, the rest of it is
+ * computed with BigDecimal. Results print identically either way.
+ */
 final class Functions {
 
-    static RuntimeValue add(List<RuntimeValue> raw) throws EvaluateException {
-        var arguments = parse(raw);
-        var result = BigDecimal.ZERO;
-        for (var number : arguments) {
-            result = result.add(number);
+    /**
+     * The builtin functions defined by every interpreter, which images
+     * refer to by name (see Image).
+     */
+    static final List<RuntimeValue.Function> BUILTINS = List.of(
+        new RuntimeValue.Function("+", new Builtin(0, Functions::add, Functions::add)),
+        new RuntimeValue.Function("-", new Builtin(0, Functions::sub, Functions::sub)),
+        new RuntimeValue.Function("*", new Builtin(1, Functions::mul, Functions::mul)),
+        new RuntimeValue.Function("/", new Builtin(1, Functions::div, Functions::div))
+    );
+
+    private static final RuntimeValue[] NONE = {};
+
+    /**
+     * Arithmetic builtin, computing calls with up to 3 integer arguments
+     * through exact (see Exact) without allocating the arguments. As each
+     * operation applied to its identity and a single argument is its unary
+     * form (0 - x, 1 / x), those are computed the same way. Everything
+     * else (including errors) is computed by the variadic form.
+     */
+    private record Builtin(
+        long identity,
+        Exact exact,
+        Variadic variadic
+    ) implements RuntimeValue.Function.Definition {
+
+        @Override
+        public RuntimeValue invoke(List<RuntimeValue> arguments) throws EvaluateException {
+            return variadic.apply(arguments.toArray(RuntimeValue[]::new));
+        }
+
+        @Override
+        public RuntimeValue invoke(RuntimeValue[] arguments) throws EvaluateException {
+            return variadic.apply(arguments);
+        }
+
+        @Override
+        public RuntimeValue invoke0() throws EvaluateException {
+            return variadic.apply(NONE);
+        }
+
+        @Override
+        public RuntimeValue invoke1(RuntimeValue first) throws EvaluateException {
+            var result = first instanceof RuntimeValue.Integer x ? exact.apply(identity, x.value()) : null;
+            return result != null ? result : variadic.apply(new RuntimeValue[] {first});
+        }
+
+        @Override
+        public RuntimeValue invoke2(RuntimeValue first, RuntimeValue second) throws EvaluateException {
+            var result = first instanceof RuntimeValue.Integer x && second instanceof RuntimeValue.Integer y ? exact.apply(x.value(), y.value()) : null;
+            return result != null ? result : variadic.apply(new RuntimeValue[] {first, second});
+        }
+
+        @Override
+        public RuntimeValue invoke3(RuntimeValue first, RuntimeValue second, RuntimeValue third) throws EvaluateException {
+            var result = first instanceof RuntimeValue.Integer x && second instanceof RuntimeValue.Integer y ? exact.apply(x.value(), y.value()) : null;
+            result = result != null && third instanceof RuntimeValue.Integer z ? exact.apply(result.value(), z.value()) : null;
+            return result != null ? result : variadic.apply(new RuntimeValue[] {first, second, third});
         }
-        return new RuntimeValue.Primitive(result);
+
+    }
+
+    @FunctionalInterface
+    private interface Exact {
+
+        /**
+         * Returns the result if it is an integer fitting in a long, otherwise
+         * (overflow, an inexact quotient, division by zero) null.
+         */
+        RuntimeValue.Integer apply(long x, long y);
+
+    }
+
+    @FunctionalInterface
+    private interface Variadic {
+        RuntimeValue apply(RuntimeValue[] arguments) throws EvaluateException;
     }
 
-    static RuntimeValue sub(List<RuntimeValue> raw) {
-        throw new UnsupportedOperationException("TODO");
+    private static RuntimeValue.Integer add(long x, long y) {
+        var sum = x + y;
+        return ((x ^ sum) & (y ^ sum)) < 0 ? null : RuntimeValue.Integer.of(sum);
     }
 
-    static RuntimeValue mul(List<RuntimeValue> raw) {
-        throw new UnsupportedOperationException("TODO");
+    private static RuntimeValue.Integer sub(long x, long y) {
+        var difference = x - y;
+        return ((x ^ y) & (x ^ difference)) < 0 ? null : RuntimeValue.Integer.of(difference);
     }
 
-    static RuntimeValue div(List<RuntimeValue> raw) {
-        throw new UnsupportedOperationException("TODO");
+    private static RuntimeValue.Integer mul(long x, long y) {
+        var product = x * y;
+        return Math.multiplyHigh(x, y) != (product >> 63) ? null : RuntimeValue.Integer.of(product);
     }
 
-    private static List<BigDecimal> parse(List<RuntimeValue> raw) throws EvaluateException {
-        var numbers = new ArrayList<BigDecimal>();
-        for (RuntimeValue argument : raw) {
-            if (argument instanceof RuntimeValue.Primitive primitive && primitive.value() instanceof BigDecimal number) {
-                numbers.add(number);
-            } else {
-                throw new EvaluateException("Invalid argument " + argument + " (" + argument.getClass() + "), expected a number.");
+    private static RuntimeValue.Integer div(long x, long y) {
+        return y == 0 || x % y != 0 || (x == Long.MIN_VALUE && y == -1) ? null : RuntimeValue.Integer.of(x / y);
+    }
+
+    static RuntimeValue add(RuntimeValue[] arguments) throws EvaluateException {
+        long result = 0;
+        var i = 0;
+        for (; i < arguments.length && arguments[i] instanceof RuntimeValue.Integer integer; i++) {
+            var sum = result + integer.value();
+            if (((result ^ sum) & (integer.value() ^ sum)) < 0) {
+                break; //overflow
             }
+            result = sum;
+        }
+        if (i == arguments.length) {
+            return RuntimeValue.Integer.of(result);
+        }
+        var decimal = BigDecimal.valueOf(result);
+        for (; i < arguments.length; i++) {
+            decimal = decimal.add(parse(arguments[i]));
+        }
+        return number(decimal);
+    }
+
+    static RuntimeValue sub(RuntimeValue[] arguments) throws EvaluateException {
+        if (arguments.length == 0) {
+            throw new EvaluateException("Builtin function - requires at least 1 argument.");
+        } else if (arguments.length == 1) {
+            if (arguments[0] instanceof RuntimeValue.Integer integer && integer.value() != Long.MIN_VALUE) {
+                return RuntimeValue.Integer.of(-integer.value());
+            }
+            return number(parse(arguments[0]).negate());
+        }
+        var i = 1;
+        long result = 0;
+        if (arguments[0] instanceof RuntimeValue.Integer first) {
+            result = first.value();
+            for (; i < arguments.length && arguments[i] instanceof RuntimeValue.Integer integer; i++) {
+                var difference = result - integer.value();
+                if (((result ^ integer.value()) & (result ^ difference)) < 0) {
+                    break; //overflow
+                }
+                result = difference;
+            }
+            if (i == arguments.length) {
+                return RuntimeValue.Integer.of(result);
+            }
+        }
+        var decimal = i == 1 ? parse(arguments[0]) : BigDecimal.valueOf(result);
+        for (; i < arguments.length; i++) {
+            decimal = decimal.subtract(parse(arguments[i]));
+        }
+        return number(decimal);
+    }
+
+    static RuntimeValue mul(RuntimeValue[] arguments) throws EvaluateException {
+        long result = 1;
+        var i = 0;
+        for (; i < arguments.length && arguments[i] instanceof RuntimeValue.Integer integer; i++) {
+            var product = result * integer.value();
+            if (Math.multiplyHigh(result, integer.value()) != (product >> 63)) {
+                break; //overflow
+            }
+            result = product;
+        }
+        if (i == arguments.length) {
+            return RuntimeValue.Integer.of(result);
+        }
+        var decimal = BigDecimal.valueOf(result);
+        for (; i < arguments.length; i++) {
+            decimal = decimal.multiply(parse(arguments[i]));
+        }
+        return number(decimal);
+    }
+
+    /**
+     * Divides the first argument by the rest, or computes the reciprocal of
+     * a single argument. Inexact quotients are rounded to DECIMAL128.
+     */
+    static RuntimeValue div(RuntimeValue[] arguments) throws EvaluateException {
+        if (arguments.length == 0) {
+            throw new EvaluateException("Builtin function / requires at least 1 argument.");
+        }
+        var i = arguments.length == 1 ? 0 : 1;
+        long result = 1;
+        if (i == 0 || arguments[0] instanceof RuntimeValue.Integer) {
+            result = i == 0 ? 1 : ((RuntimeValue.Integer) arguments[0]).value();
+            for (; i < arguments.length && arguments[i] instanceof RuntimeValue.Integer integer; i++) {
+                if (integer.value() == 0 || result % integer.value() != 0 || (result == Long.MIN_VALUE && integer.value() == -1)) {
+                    break; //inexact, division by zero, or overflow
+                }
+                result /= integer.value();
+            }
+            if (i == arguments.length) {
+                return RuntimeValue.Integer.of(result);
+            }
+        }
+        var decimal = i == 1 && !(arguments[0] instanceof RuntimeValue.Integer) ? parse(arguments[0]) : BigDecimal.valueOf(result);
+        for (; i < arguments.length; i++) {
+            var divisor = parse(arguments[i]);
+            if (divisor.signum() == 0) {
+                throw new EvaluateException("Division by zero.");
+            }
+            decimal = decimal.divide(divisor, MathContext.DECIMAL128);
+        }
+        return number(decimal);
+    }
+
+    /**
+     * Returns the runtime value of a number, using the RuntimeValue.Integer
+     * representation when it is integral (scale 0) and fits in a long.
+     */
+    static RuntimeValue number(BigDecimal number) {
+        return number.scale() == 0 && number.unscaledValue().bitLength() < 64
+            ? RuntimeValue.Integer.of(number.longValueExact())
+            : new RuntimeValue.Primitive(number);
+    }
+
+    private static BigDecimal parse(RuntimeValue argument) throws EvaluateException {
+        if (argument instanceof RuntimeValue.Integer integer) {
+            return BigDecimal.valueOf(integer.value());
+        } else if (argument instanceof RuntimeValue.Primitive primitive && primitive.value() instanceof BigDecimal number) {
+            return number;
+        } else {
+            throw new EvaluateException("Invalid argument " + argument + " (" + argument.getClass() + "), expected a number.");
         }
-        return numbers;
     }
 
 }
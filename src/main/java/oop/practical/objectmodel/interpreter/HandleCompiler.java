@@ -0,0 +1,273 @@
+package oop.practical.objectmodel.interpreter;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.SwitchPoint;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Second execution tier for hot closures (see Closure.code): recompiles a
+ * body once it has been invoked THRESHOLD times, replacing expressions with
+ * MethodHandle trees (see Node.Compiled) that the JIT can inline through.
+ *
+ * Globals the body refers to, namely variables resolved by name from the
+ * closure's captured dictionary and persistent scopes, are bound as
+ * constants, so calls to builtins and other functions invoke their
+ * definition directly instead of resolving it on every call. Each binding
+ * is guarded by a SwitchPoint for its name, which is invalidated when the
+ * name is defined again in any such scope (see redefined): guarded
+ * expressions then fall back to evaluating their node, and the closure
+ * returns to the interpreter until it is hot again (see Compiled.valid).
+ *
+ * Calls in tail position are left as nodes for Closure.evaluate to loop on,
+ * except calls to bound definitions that are not closures, which cannot
+ * recurse. Method bodies are compiled the same way, though their globals
+ * are resolved through the receiver's scope and so are never bound.
+ */
+final class HandleCompiler {
+
+    static final int THRESHOLD = 1_000;
+
+    private static final Map<String, SwitchPoint> GLOBALS = new ConcurrentHashMap<>();
+
+    private static final MethodHandle EVALUATE;
+    private static final MethodHandle SLOT;
+    private static final MethodHandle SEQUENCE;
+    private static final MethodHandle[] CALLS;
+    private static final MethodHandle CALL;
+    private static final MethodHandle LOCATE;
+
+    static {
+        var lookup = MethodHandles.lookup();
+        var type = MethodType.methodType(RuntimeValue.class, Scope.class);
+        try {
+            EVALUATE = lookup.findVirtual(Node.class, "evaluate", type);
+            SLOT = lookup.findStatic(HandleCompiler.class, "slot", type.insertParameterTypes(0, int.class, Node.Variable.class));
+            SEQUENCE = lookup.findStatic(HandleCompiler.class, "sequence", type.insertParameterTypes(0, MethodHandle.class, MethodHandle.class));
+            CALLS = new MethodHandle[4];
+            for (int i = 0; i < CALLS.length; i++) {
+                var parameters = Collections.<Class<?>>nCopies(i, MethodHandle.class);
+                CALLS[i] = lookup.findStatic(HandleCompiler.class, "call" + i, type.insertParameterTypes(0, parameters).insertParameterTypes(0, RuntimeValue.Function.Definition.class));
+            }
+            CALL = lookup.findStatic(HandleCompiler.class, "call", type.insertParameterTypes(0, RuntimeValue.Function.Definition.class, MethodHandle[].class));
+            LOCATE = lookup.findStatic(HandleCompiler.class, "locate", type.insertParameterTypes(0, int.class, EvaluateException.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * A compiled body, valid until any of the names bound in it are defined
+     * again.
+     */
+    record Compiled(Node body, SwitchPoint[] dependencies) {
+
+        boolean valid() {
+            for (SwitchPoint dependency : dependencies) {
+                if (dependency.hasBeenInvalidated()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+    /**
+     * The value a global was bound to, valid until the switch point is
+     * invalidated.
+     */
+    private record Binding(RuntimeValue value, SwitchPoint switchPoint) {}
+
+    private final Scope scope;
+    private final List<SwitchPoint> dependencies = new ArrayList<>();
+
+    private HandleCompiler(Scope scope) {
+        this.scope = scope;
+    }
+
+    static Compiled compile(Closure closure) {
+        var compiler = new HandleCompiler(closure.scope());
+        var body = compiler.tail(closure.body());
+        return new Compiled(body, compiler.dependencies.toArray(SwitchPoint[]::new));
+    }
+
+    /**
+     * Invalidates the bindings of a name, which must be called after it is
+     * defined in a dictionary or persistent scope.
+     */
+    static void redefined(String name) {
+        var switchPoint = GLOBALS.remove(name);
+        if (switchPoint != null) {
+            SwitchPoint.invalidateAll(new SwitchPoint[] {switchPoint});
+        }
+    }
+
+    private Node tail(Node node) {
+        return switch (node) {
+            case Node.Do block when block.expressions().length > 0 -> {
+                var expressions = new Node[block.expressions().length];
+                for (int i = 0; i < expressions.length - 1; i++) {
+                    expressions[i] = node(block.expressions()[i]);
+                }
+                expressions[expressions.length - 1] = tail(block.expressions()[expressions.length - 1]);
+                yield new Node.Do(expressions);
+            }
+            case Node.Call call when bind(call.function()) == null
+                || !(bind(call.function()).value() instanceof RuntimeValue.Function function)
+                || function.definition() instanceof Closure -> new Node.Call(call.function(), nodes(call.arguments()), call.position());
+            default -> node(node);
+        };
+    }
+
+    /**
+     * Returns the node to evaluate in place of a node in any position other
+     * than the tail.
+     */
+    private Node node(Node node) {
+        return switch (node) {
+            case Node.Variable variable -> {
+                var binding = bind(variable);
+                yield binding != null
+                    ? new Node.Compiled(variable, guard(binding, constant(binding.value()), EVALUATE.bindTo(variable)))
+                    : variable;
+            }
+            case Node.Do block -> new Node.Do(nodes(block.expressions()));
+            case Node.Def def -> new Node.Def(def.name(), node(def.value()));
+            case Node.Set set -> new Node.Set(set.name(), node(set.value()));
+            case Node.Object object -> new Node.Object(object.name(), object.keys(), object.methods(), nodes(object.values()));
+            case Node.Call call -> {
+                var arguments = nodes(call.arguments());
+                var interpreted = new Node.Call(call.function(), arguments, call.position());
+                var binding = bind(call.function());
+                if (binding == null || !(binding.value() instanceof RuntimeValue.Function function)) {
+                    yield interpreted;
+                }
+                var handles = new MethodHandle[arguments.length];
+                for (int i = 0; i < handles.length; i++) {
+                    handles[i] = handle(arguments[i]);
+                }
+                var target = handles.length < CALLS.length
+                    ? MethodHandles.insertArguments(CALLS[handles.length].bindTo(function.definition()), 0, (java.lang.Object[]) handles)
+                    : MethodHandles.insertArguments(CALL, 0, function.definition(), handles);
+                target = MethodHandles.catchException(target, EvaluateException.class, MethodHandles.insertArguments(LOCATE, 0, call.position()));
+                yield new Node.Compiled(interpreted, guard(binding, target, EVALUATE.bindTo(interpreted)));
+            }
+            case Node.MethodCall call -> new Node.MethodCall(call.name(), call.setter(), node(call.receiver()), nodes(call.arguments()), call.method(), call.field(), call.position());
+            default -> node;
+        };
+    }
+
+    private Node[] nodes(Node[] nodes) {
+        var compiled = new Node[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            compiled[i] = node(nodes[i]);
+        }
+        return compiled;
+    }
+
+    /**
+     * Returns the handle evaluating a node returned by node.
+     */
+    private static MethodHandle handle(Node node) {
+        return switch (node) {
+            case Node.Compiled compiled -> compiled.handle();
+            case Node.Constant constant -> constant(constant.value());
+            case Node.Variable variable when variable.depth() == 0 && variable.index() != -1 -> MethodHandles.insertArguments(SLOT, 0, variable.index(), variable);
+            case Node.Do block when block.expressions().length > 0 -> {
+                var expressions = block.expressions();
+                var handle = handle(expressions[expressions.length - 1]);
+                for (int i = expressions.length - 2; i >= 0; i--) {
+                    handle = MethodHandles.insertArguments(SEQUENCE, 0, handle(expressions[i]), handle);
+                }
+                yield handle;
+            }
+            default -> EVALUATE.bindTo(node);
+        };
+    }
+
+    /**
+     * Returns the binding of a global variable if it can be bound, being
+     * defined and resolved by name from the closure's captured scope (or
+     * one of its ancestors) through dictionary and persistent scopes only.
+     */
+    private Binding bind(Node.Variable variable) {
+        if (scope == null || variable.depth() == 0 || variable.index() != -1) {
+            return null;
+        }
+        var scope = this.scope;
+        for (int i = 1; i < variable.depth(); i++) {
+            scope = scope.parent();
+        }
+        for (var ancestor = scope; ancestor != null; ancestor = ancestor.parent()) {
+            if (ancestor.shape() != null) {
+                return null;
+            }
+        }
+        //the switch point is registered before reading the value, so a
+        //concurrent definition is either read or invalidates it
+        var switchPoint = GLOBALS.computeIfAbsent(variable.name(), name -> new SwitchPoint());
+        var value = scope.resolve(variable.name(), false);
+        return value.map(v -> new Binding(v, switchPoint)).orElse(null);
+    }
+
+    private MethodHandle guard(Binding binding, MethodHandle target, MethodHandle fallback) {
+        dependencies.add(binding.switchPoint());
+        return binding.switchPoint().guardWithTest(target, fallback);
+    }
+
+    private static MethodHandle constant(RuntimeValue value) {
+        return MethodHandles.dropArguments(MethodHandles.constant(RuntimeValue.class, value), 0, Scope.class);
+    }
+
+    private static RuntimeValue slot(int index, Node.Variable variable, Scope scope) throws EvaluateException {
+        var value = scope.get(index);
+        return value != null ? value : variable.evaluate(scope);
+    }
+
+    private static RuntimeValue sequence(MethodHandle first, MethodHandle rest, Scope scope) throws Throwable {
+        var unused = (RuntimeValue) first.invokeExact(scope);
+        return (RuntimeValue) rest.invokeExact(scope);
+    }
+
+    private static RuntimeValue call0(RuntimeValue.Function.Definition definition, Scope scope) throws Throwable {
+        return definition.invoke0();
+    }
+
+    private static RuntimeValue call1(RuntimeValue.Function.Definition definition, MethodHandle first, Scope scope) throws Throwable {
+        return definition.invoke1((RuntimeValue) first.invokeExact(scope));
+    }
+
+    private static RuntimeValue call2(RuntimeValue.Function.Definition definition, MethodHandle first, MethodHandle second, Scope scope) throws Throwable {
+        var x = (RuntimeValue) first.invokeExact(scope);
+        return definition.invoke2(x, (RuntimeValue) second.invokeExact(scope));
+    }
+
+    private static RuntimeValue call3(RuntimeValue.Function.Definition definition, MethodHandle first, MethodHandle second, MethodHandle third, Scope scope) throws Throwable {
+        var x = (RuntimeValue) first.invokeExact(scope);
+        var y = (RuntimeValue) second.invokeExact(scope);
+        return definition.invoke3(x, y, (RuntimeValue) third.invokeExact(scope));
+    }
+
+    private static RuntimeValue call(RuntimeValue.Function.Definition definition, MethodHandle[] arguments, Scope scope) throws Throwable {
+        var values = new RuntimeValue[arguments.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (RuntimeValue) arguments[i].invokeExact(scope);
+        }
+        return definition.invoke(values);
+    }
+
+    /**
+     * Attaches the position of a bound call to exceptions thrown by it, as
+     * its node (see Node.Call.evaluate) is bypassed.
+     */
+    private static RuntimeValue locate(int position, EvaluateException exception, Scope scope) throws EvaluateException {
+        throw exception.at(position);
+    }
+
+}
@@ -0,0 +1,483 @@
+package oop.practical.objectmodel.interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary image of a scope and everything reachable from it (see
+ * Interpreter.snapshot), restored without parsing or evaluating anything.
+ *
+ * Scopes, objects and functions are entries referenced by index, so shared
+ * references and cycles are preserved. Entries are written after the
+ * entries they are constructed from (a scope's parent, an object's scope,
+ * a closure's scope and the methods in its body), which are acyclic,
+ * followed by the contents of every scope, which may reference any entry.
+ * Closure bodies are written as their compiled Nodes (with empty inline
+ * caches), so restored functions are not compiled again. Builtins are
+ * written by name; other functions implemented in Java cannot be written.
+ */
+final class Image {
+
+    private static final int MAGIC = 0x4F4D494D; //OMIM
+    private static final int VERSION = 2;
+
+    private static final byte DICTIONARY = 0;
+    private static final byte OBJECT_SCOPE = 1;
+    private static final byte FRAME = 2;
+    private static final byte OBJECT = 3;
+    private static final byte BUILTIN = 4;
+    private static final byte CLOSURE = 5;
+    private static final byte PERSISTENT = 6;
+
+    private static final byte EMPTY = 0;
+    private static final byte NULL = 1;
+    private static final byte ATOM = 2;
+    private static final byte DECIMAL = 3;
+    private static final byte INTEGER = 4;
+    private static final byte REFERENCE = 5;
+
+    private static final byte CONSTANT = 0;
+    private static final byte VARIABLE = 1;
+    private static final byte DO = 2;
+    private static final byte DEF = 3;
+    private static final byte DEF_FUNCTION = 4;
+    private static final byte SET = 5;
+    private static final byte OBJECT_NODE = 6;
+    private static final byte CALL = 7;
+    private static final byte METHOD_CALL = 8;
+    private static final byte FAIL = 9;
+
+    private Image() {}
+
+    static void write(Scope scope, Path path) throws IOException {
+        var writer = new Writer();
+        var root = writer.entry(scope);
+        var contents = writer.contents();
+        try (var output = new DataOutputStream(Files.newOutputStream(path))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(writer.count);
+            output.writeInt(root);
+            writer.entries.writeTo(output);
+            contents.writeTo(output);
+        }
+    }
+
+    static Scope read(Path path) throws IOException {
+        ByteBuffer buffer;
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Invalid image " + path + ".");
+            }
+            return new Reader(buffer).read();
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid image " + path + ".", e);
+        }
+    }
+
+    private static final class Writer {
+
+        private final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        private final DataOutputStream output = new DataOutputStream(entries);
+        private final Map<java.lang.Object, Integer> ids = new IdentityHashMap<>();
+        private final List<Scope> scopes = new ArrayList<>();
+        private int count = 0;
+
+        /**
+         * Returns the index of the entry, writing it (and the entries it is
+         * constructed from) first if needed.
+         */
+        private int entry(java.lang.Object entry) throws IOException {
+            var id = ids.get(entry);
+            if (id != null) {
+                return id;
+            }
+            switch (entry) {
+                case Scope scope -> {
+                    var parent = scope.parent() != null ? entry(scope.parent()) : -1;
+                    if (scope.persistent()) {
+                        output.writeByte(PERSISTENT);
+                        output.writeInt(parent);
+                    } else if (scope.shape() == null) {
+                        output.writeByte(DICTIONARY);
+                        output.writeInt(parent);
+                    } else if (scope.shared()) {
+                        output.writeByte(OBJECT_SCOPE);
+                        output.writeInt(parent);
+                        output.writeInt(scope.shape().size());
+                    } else {
+                        output.writeByte(FRAME);
+                        output.writeInt(parent);
+                        shape(scope.shape(), output);
+                    }
+                    scopes.add(scope);
+                }
+                case RuntimeValue.Object object -> {
+                    var scope = entry(object.scope());
+                    output.writeByte(OBJECT);
+                    string(object.name(), output);
+                    output.writeInt(scope);
+                }
+                case RuntimeValue.Function function when function.definition() instanceof Closure closure -> {
+                    var scope = closure.scope() != null ? entry(closure.scope()) : -1;
+                    var body = new ByteArrayOutputStream();
+                    node(closure.body(), new DataOutputStream(body));
+                    output.writeByte(CLOSURE);
+                    string(function.name(), output);
+                    output.writeInt(scope);
+                    ints(closure.parameters(), output);
+                    shape(closure.layout(), output);
+                    body.writeTo(output);
+                }
+                case RuntimeValue.Function function when Functions.BUILTINS.stream().anyMatch(b -> b == function) -> {
+                    output.writeByte(BUILTIN);
+                    string(function.name(), output);
+                }
+                default -> throw new NotSerializableException("Cannot write " + entry + " (" + entry.getClass() + ") to an image.");
+            }
+            ids.put(entry, count);
+            return count++;
+        }
+
+        /**
+         * Returns the contents of every scope written so far, including those
+         * first referenced while writing the contents.
+         */
+        private ByteArrayOutputStream contents() throws IOException {
+            var contents = new ByteArrayOutputStream();
+            var output = new DataOutputStream(contents);
+            for (int i = 0; i < scopes.size(); i++) {
+                var scope = scopes.get(i);
+                if (scope.shape() != null && !scope.shared()) {
+                    for (int j = 0; j < scope.shape().size(); j++) {
+                        value(scope.get(j), output);
+                    }
+                } else {
+                    var entries = scope.collect(true);
+                    output.writeInt(entries.size());
+                    for (var entry : entries.entrySet()) {
+                        string(entry.getKey(), output);
+                        value(entry.getValue(), output);
+                    }
+                }
+            }
+            return contents;
+        }
+
+        private void value(RuntimeValue value, DataOutputStream output) throws IOException {
+            switch (value) {
+                case null -> output.writeByte(EMPTY);
+                case RuntimeValue.Primitive primitive when primitive.value() == null -> output.writeByte(NULL);
+                case RuntimeValue.Primitive primitive when primitive.value() instanceof String atom -> {
+                    output.writeByte(ATOM);
+                    string(atom, output);
+                }
+                case RuntimeValue.Primitive primitive when primitive.value() instanceof BigDecimal decimal -> {
+                    output.writeByte(DECIMAL);
+                    output.writeInt(decimal.scale());
+                    var unscaled = decimal.unscaledValue().toByteArray();
+                    output.writeInt(unscaled.length);
+                    output.write(unscaled);
+                }
+                case RuntimeValue.Integer integer -> {
+                    output.writeByte(INTEGER);
+                    output.writeLong(integer.value());
+                }
+                case RuntimeValue.Object object -> reference(object, output);
+                case RuntimeValue.Function function -> reference(function, output);
+                default -> throw new NotSerializableException("Cannot write " + value + " (" + value.getClass() + ") to an image.");
+            }
+        }
+
+        private void reference(RuntimeValue value, DataOutputStream output) throws IOException {
+            var id = entry(value);
+            output.writeByte(REFERENCE);
+            output.writeInt(id);
+        }
+
+        private void node(Node node, DataOutputStream output) throws IOException {
+            switch (node) {
+                case Node.Constant constant -> {
+                    output.writeByte(CONSTANT);
+                    value(constant.value(), output);
+                }
+                case Node.Variable variable -> {
+                    output.writeByte(VARIABLE);
+                    variable(variable, output);
+                }
+                case Node.Do block -> {
+                    output.writeByte(DO);
+                    nodes(block.expressions(), output);
+                }
+                case Node.Def def -> {
+                    output.writeByte(DEF);
+                    string(def.name(), output);
+                    node(def.value(), output);
+                }
+                case Node.DefFunction function -> {
+                    output.writeByte(DEF_FUNCTION);
+                    string(function.name(), output);
+                    ints(function.parameters(), output);
+                    shape(function.layout(), output);
+                    node(function.body(), output);
+                }
+                case Node.Set set -> {
+                    output.writeByte(SET);
+                    string(set.name(), output);
+                    node(set.value(), output);
+                }
+                case Node.Object object -> {
+                    output.writeByte(OBJECT_NODE);
+                    string(object.name(), output);
+                    output.writeInt(object.keys().length);
+                    for (int i = 0; i < object.keys().length; i++) {
+                        string(object.keys()[i], output);
+                        output.writeBoolean(object.methods()[i]);
+                        node(object.values()[i], output);
+                    }
+                }
+                case Node.Call call -> {
+                    output.writeByte(CALL);
+                    variable(call.function(), output);
+                    nodes(call.arguments(), output);
+                    output.writeInt(call.position());
+                }
+                case Node.MethodCall call -> {
+                    output.writeByte(METHOD_CALL);
+                    string(call.name(), output);
+                    string(call.setter(), output);
+                    node(call.receiver(), output);
+                    nodes(call.arguments(), output);
+                    output.writeInt(call.position());
+                }
+                case Node.Compiled compiled -> node(compiled.node(), output);
+                case Node.Parallel parallel -> node(parallel.call(), output);
+                case Node.Fail fail -> {
+                    output.writeByte(FAIL);
+                    string(fail.message(), output);
+                }
+            }
+        }
+
+        private void nodes(Node[] nodes, DataOutputStream output) throws IOException {
+            output.writeInt(nodes.length);
+            for (Node node : nodes) {
+                node(node, output);
+            }
+        }
+
+        private static void variable(Node.Variable variable, DataOutputStream output) throws IOException {
+            string(variable.name(), output);
+            output.writeInt(variable.depth());
+            output.writeInt(variable.index());
+        }
+
+        private static void shape(Shape shape, DataOutputStream output) throws IOException {
+            output.writeInt(shape.size());
+            for (int i = 0; i < shape.size(); i++) {
+                string(shape.key(i), output);
+            }
+        }
+
+        private static void ints(int[] values, DataOutputStream output) throws IOException {
+            output.writeInt(values.length);
+            for (int value : values) {
+                output.writeInt(value);
+            }
+        }
+
+        private static void string(String string, DataOutputStream output) throws IOException {
+            if (string == null) {
+                output.writeInt(-1);
+                return;
+            }
+            var bytes = string.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+
+    }
+
+    private static final class Reader {
+
+        private final ByteBuffer buffer;
+        private java.lang.Object[] entries;
+        private final List<Scope> scopes = new ArrayList<>();
+
+        private Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private Scope read() throws IOException {
+            entries = new java.lang.Object[buffer.getInt()];
+            var root = buffer.getInt();
+            for (int i = 0; i < entries.length; i++) {
+                entries[i] = entry();
+            }
+            for (Scope scope : scopes) {
+                if (scope.shape() != null && !scope.shared()) {
+                    for (int i = 0; i < scope.shape().size(); i++) {
+                        var value = value();
+                        if (value != null) {
+                            scope.set(i, value);
+                        }
+                    }
+                } else {
+                    var size = buffer.getInt();
+                    for (int i = 0; i < size; i++) {
+                        scope.define(string(), value());
+                    }
+                }
+            }
+            return (Scope) entries[root];
+        }
+
+        private java.lang.Object entry() throws IOException {
+            return switch (buffer.get()) {
+                case DICTIONARY -> scope(new Scope(parent()));
+                case PERSISTENT -> scope(Scope.persistent(parent()));
+                case OBJECT_SCOPE -> scope(new Scope(parent(), buffer.getInt()));
+                case FRAME -> {
+                    var parent = parent();
+                    yield scope(new Scope(parent, shape()));
+                }
+                case OBJECT -> {
+                    var name = string();
+                    yield new RuntimeValue.Object(name, (Scope) entries[buffer.getInt()]);
+                }
+                case BUILTIN -> {
+                    var name = string();
+                    yield Functions.BUILTINS.stream()
+                        .filter(b -> b.name().equals(name))
+                        .findFirst()
+                        .orElseThrow(() -> new IOException("Unknown builtin function " + name + "."));
+                }
+                case CLOSURE -> {
+                    var name = string();
+                    var scope = buffer.getInt();
+                    var parameters = ints();
+                    var layout = shape();
+                    var body = node();
+                    yield new RuntimeValue.Function(name, new Closure(scope != -1 ? (Scope) entries[scope] : null, parameters, layout, body));
+                }
+                default -> throw new IOException("Invalid image entry.");
+            };
+        }
+
+        private Scope parent() {
+            var parent = buffer.getInt();
+            return parent != -1 ? (Scope) entries[parent] : null;
+        }
+
+        private Scope scope(Scope scope) {
+            scopes.add(scope);
+            return scope;
+        }
+
+        private RuntimeValue value() throws IOException {
+            return switch (buffer.get()) {
+                case EMPTY -> null;
+                case NULL -> new RuntimeValue.Primitive(null);
+                case ATOM -> new RuntimeValue.Primitive(string());
+                case DECIMAL -> {
+                    var scale = buffer.getInt();
+                    var unscaled = new byte[buffer.getInt()];
+                    buffer.get(unscaled);
+                    yield new RuntimeValue.Primitive(new BigDecimal(new BigInteger(unscaled), scale));
+                }
+                case INTEGER -> RuntimeValue.Integer.of(buffer.getLong());
+                case REFERENCE -> (RuntimeValue) entries[buffer.getInt()];
+                default -> throw new IOException("Invalid image value.");
+            };
+        }
+
+        private Node node() throws IOException {
+            return switch (buffer.get()) {
+                case CONSTANT -> new Node.Constant(value());
+                case VARIABLE -> variable();
+                case DO -> new Node.Do(nodes());
+                case DEF -> new Node.Def(string(), node());
+                case DEF_FUNCTION -> new Node.DefFunction(string(), ints(), shape(), node());
+                case SET -> new Node.Set(string(), node());
+                case OBJECT_NODE -> {
+                    var name = string();
+                    var size = buffer.getInt();
+                    var keys = new String[size];
+                    var methods = new boolean[size];
+                    var values = new Node[size];
+                    for (int i = 0; i < size; i++) {
+                        keys[i] = string();
+                        methods[i] = buffer.get() != 0;
+                        values[i] = node();
+                    }
+                    yield new Node.Object(name, keys, methods, values);
+                }
+                case CALL -> new Node.Call(variable(), nodes(), buffer.getInt());
+                case METHOD_CALL -> {
+                    var name = string();
+                    var setter = string();
+                    yield new Node.MethodCall(name, setter, node(), nodes(), new InlineCache(name, name), new InlineCache(name.substring(1), name), buffer.getInt());
+                }
+                case FAIL -> new Node.Fail(string());
+                default -> throw new IOException("Invalid image node.");
+            };
+        }
+
+        private Node[] nodes() throws IOException {
+            var nodes = new Node[buffer.getInt()];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = node();
+            }
+            return nodes;
+        }
+
+        private Node.Variable variable() {
+            return new Node.Variable(string(), buffer.getInt(), buffer.getInt());
+        }
+
+        private Shape shape() {
+            var shape = Shape.ROOT;
+            for (int i = buffer.getInt(); i > 0; i--) {
+                shape = shape.with(string());
+            }
+            return shape;
+        }
+
+        private int[] ints() {
+            var values = new int[buffer.getInt()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = buffer.getInt();
+            }
+            return values;
+        }
+
+        private String string() {
+            var length = buffer.getInt();
+            if (length == -1) {
+                return null;
+            }
+            var bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+    }
+
+}
@@ -0,0 +1,144 @@
+package oop.practical.objectmodel.interpreter;
+
+import java.util.Arrays;
+
+/**
+ * Per call site cache for the prototype chain lookup of a single key. The
+ * result of a lookup is cached against the receiver's shape and prototype,
+ * recording which scope (receiver or ancestor) defines the key and at which
+ * slot, so a hit is a shape check followed by array indexing. Up to LIMIT
+ * entries are cached per site, after which the site always walks the chain.
+ *
+ * A key can only move when an ancestor walked past gains a new key or has
+ * its prototype replaced, as the receiver's own changes are covered by its
+ * shape and prototype. Each entry therefore holds the validity Cell of
+ * every ancestor before the holder, which that ancestor's scope invalidates
+ * on such a change (see Scope.invalidate), and only applies while they are
+ * all valid. Objects that are never walked as an ancestor have no cell, so
+ * defining keys in them does not affect any cache.
+ *
+ * Sites are shared by every thread evaluating the same compiled code, so
+ * entries are immutable and replaced as a whole (copy on write). Cells are
+ * taken before reading the ancestor's shape, so an entry recorded
+ * concurrently with a change holds the cell it invalidates.
+ */
+final class InlineCache {
+
+    private static final int LIMIT = 4;
+    private static final Cell[] NONE = new Cell[0];
+
+    private final String key;
+    private final String selector;
+    private volatile Entry[] entries = new Entry[0];
+
+    /**
+     * Validity of the entries which walked past an ancestor, see Scope.cell.
+     */
+    static final class Cell {
+
+        private volatile boolean valid = true;
+
+        void invalidate() {
+            valid = false;
+        }
+
+    }
+
+    /**
+     * The key is defined in the holder (null for the receiver itself) at
+     * the index, or undefined if the index is -1. The prototype index is
+     * the slot of the receiver's prototype (-1 if it has none), which must
+     * still be the recorded prototype for the entry to apply, and the cells
+     * are those of the ancestors before the holder.
+     */
+    private record Entry(Shape shape, int prototypeIndex, RuntimeValue prototype, Cell[] cells, Scope holder, int index, int depth) {
+
+        private boolean valid() {
+            for (Cell cell : cells) {
+                if (!cell.valid) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+    /**
+     * The selector is that of the method calls using this site, which its
+     * lookups are profiled under (see Profiler).
+     */
+    InlineCache(String key, String selector) {
+        this.key = key;
+        this.selector = selector;
+    }
+
+    /**
+     * Returns the value of the key in the receiver or the closest ancestor
+     * defining it, or null if it is not defined anywhere along the chain.
+     */
+    RuntimeValue lookup(RuntimeValue.Object receiver) {
+        var scope = receiver.scope();
+        var shape = scope.shape();
+        var entries = this.entries;
+        for (Entry entry : entries) {
+            if (entry.shape() == shape && (entry.prototypeIndex() == -1 || scope.get(entry.prototypeIndex()) == entry.prototype()) && entry.valid()) {
+                if (Profiler.enabled()) {
+                    Profiler.lookup(selector, true, entry.depth());
+                }
+                return entry.index() == -1 ? null : (entry.holder() != null ? entry.holder() : scope).get(entry.index());
+            }
+        }
+        var live = entries;
+        for (Entry entry : entries) {
+            if (!entry.valid()) {
+                live = Arrays.stream(entries).filter(Entry::valid).toArray(Entry[]::new);
+                break;
+            }
+        }
+        var record = live.length < LIMIT;
+        Scope holder = null;
+        var index = shape.indexOf(key);
+        var prototypeIndex = -1;
+        RuntimeValue prototype = null;
+        var cells = NONE;
+        var walked = 0;
+        var depth = 0;
+        if (index == -1) {
+            prototypeIndex = shape.indexOf("prototype");
+            prototype = prototypeIndex != -1 ? scope.get(prototypeIndex) : null;
+            for (var ancestor = prototype; ancestor instanceof RuntimeValue.Object object; ancestor = prototype(object)) {
+                depth++;
+                var cell = record ? object.scope().cell() : null; //before reading the shape
+                index = object.scope().shape().indexOf(key);
+                if (index != -1) {
+                    holder = object.scope();
+                    break;
+                } else if (record) {
+                    if (walked == cells.length) {
+                        cells = Arrays.copyOf(cells, Math.max(2 * walked, 4));
+                    }
+                    cells[walked++] = cell;
+                }
+            }
+        }
+        if (Profiler.enabled()) {
+            Profiler.lookup(selector, false, depth);
+        }
+        if (record) {
+            var updated = Arrays.copyOf(live, live.length + 1);
+            updated[live.length] = new Entry(shape, prototypeIndex, prototype, walked == cells.length ? cells : Arrays.copyOf(cells, walked), holder, index, depth);
+            this.entries = updated;
+        } else if (live != entries) {
+            this.entries = live;
+        }
+        return index == -1 ? null : (holder != null ? holder : scope).get(index);
+    }
+
+    static RuntimeValue.Object prototype(RuntimeValue.Object object) {
+        return object.scope().resolve("prototype", true).orElse(null) instanceof RuntimeValue.Object prototype
+            ? prototype
+            : null;
+    }
+
+}
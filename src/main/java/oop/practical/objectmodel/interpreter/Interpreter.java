@@ -2,173 +2,155 @@ package oop.practical.objectmodel.interpreter;
 
 import oop.practical.objectmodel.lisp.Ast;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 
 public final class Interpreter {
 
-    private Scope scope;
+    private final Scope scope;
+    private final ForkJoinPool pool;
+    private final NodeCache nodes;
+
+    /**
+     * The result of an input evaluated by batch, which is either its value
+     * or the ParseException or EvaluateException it failed with.
+     */
+    public record Result(RuntimeValue value, Exception error) {}
 
     public Interpreter() {
-        scope = new Scope(null);
+        scope = Scope.persistent(null);
         scope.define("null", new RuntimeValue.Primitive(null));
-        scope.define("+", new RuntimeValue.Function("+", Functions::add));
-        scope.define("-", new RuntimeValue.Function("-", Functions::sub));
-        scope.define("*", new RuntimeValue.Function("*", Functions::mul));
-        scope.define("/", new RuntimeValue.Function("/", Functions::div));
-        scope.define("Object", new RuntimeValue.Object("Object", new Scope(scope)));
+        for (RuntimeValue.Function function : Functions.BUILTINS) {
+            scope.define(function.name(), function);
+        }
+        scope.define("Object", new RuntimeValue.Object("Object", new Scope(scope, 0)));
+        pool = null;
+        nodes = null;
     }
 
     public Interpreter(Scope scope) {
+        this(scope, null, null);
+    }
+
+    private Interpreter(Scope scope, ForkJoinPool pool, NodeCache nodes) {
         this.scope = scope;
+        this.pool = pool;
+        this.nodes = nodes;
     }
 
     public Scope getScope() {
         return scope;
     }
 
-    public RuntimeValue visit(Ast ast) throws EvaluateException {
-        return switch (ast) {
-            case Ast.Number number -> visit(number);
-            case Ast.Atom atom -> visit(atom);
-            case Ast.Variable variable -> visit(variable);
-            case Ast.Function function -> visit(function);
-        };
-    }
-
-    public RuntimeValue visit(Ast.Number ast) {
-        return new RuntimeValue.Primitive(ast.value());
+    /**
+     * Returns a new interpreter evaluating in a child of this interpreter's
+     * scope, which is frozen so that any number of contexts can share it
+     * (with the builtins and definitions evaluated so far) across threads.
+     * Definitions made by a context are local to it. Each context must only
+     * be used by one thread at a time, while objects reachable from the
+     * shared scope may be used (and mutated) by all of them.
+     *
+     * This interpreter can no longer define variables once frozen, though
+     * it can still evaluate expressions.
+     */
+    public Interpreter context() {
+        return new Interpreter(Scope.persistent(scope.freeze()), pool, nodes);
     }
 
-    public RuntimeValue visit(Ast.Atom ast) {
-        //Our language doesn't have strings so this is sufficient, but the
-        //better practice would be to define a proper type.
-        return new RuntimeValue.Primitive(":" + ast.name());
+    /**
+     * Returns a new interpreter evaluating in a fork of this interpreter's
+     * scope (see Scope.fork), which is O(1), so an evaluation can be tried
+     * speculatively and discarded. Variables defined by either interpreter
+     * afterwards are not visible to the other, while objects are shared
+     * (see .clone to copy them).
+     */
+    public Interpreter fork() {
+        return new Interpreter(scope.fork(), pool, nodes);
     }
 
-    public RuntimeValue visit(Ast.Variable ast) throws EvaluateException {
-        return scope.resolve(ast.name(), false)
-            .orElseThrow(() -> new EvaluateException("Undefined variable " + ast.name() + "."));
+    /**
+     * Returns an interpreter evaluating in this interpreter's scope which
+     * evaluates independent arguments of calls in parallel on the pool (see
+     * Scheduler), with the same results as evaluating them sequentially.
+     * This applies to functions and methods defined through it as well.
+     */
+    public Interpreter parallel(ForkJoinPool pool) {
+        return new Interpreter(scope, pool, nodes != null ? new NodeCache(nodes.capacity()) : null);
     }
 
-    public RuntimeValue visit(Ast.Function ast) throws EvaluateException {
-        return switch (ast.name()) {
-            case "do" -> visitBuiltinDo(ast);
-            case "def" -> visitBuiltinDef(ast);
-            case "set!" -> visitBuiltinSet(ast);
-            case "object" -> visitBuiltinObject(ast);
-            default -> ast.name().startsWith(".") ? visitMethod(ast) : visitFunction(ast);
-        };
+    /**
+     * Returns an interpreter evaluating in this interpreter's scope which
+     * keeps the nodes compiled for up to capacity asts (see NodeCache), so
+     * asts evaluated repeatedly, such as those of a Lisp.Cache, are only
+     * compiled once. The cache is shared by its contexts and forks.
+     */
+    public Interpreter cached(int capacity) {
+        return new Interpreter(scope, pool, new NodeCache(capacity));
     }
 
     /**
-     *  - Do: (do [expressions])
+     * Writes an image of this interpreter's scope and everything reachable
+     * from it, such as a loaded prelude, to the file (see Image).
      */
-    private RuntimeValue visitBuiltinDo(Ast.Function ast) throws EvaluateException {
-        RuntimeValue result = new RuntimeValue.Primitive(null);
-        for (Ast expression : ast.arguments()) {
-            result = visit(expression); //TODO: Scope?
-        }
-        return result;
+    public void snapshot(Path path) throws IOException {
+        Image.write(scope, path);
     }
 
     /**
-     *  - Variable: (def <name> <value>)
-     *  - Function: (def (<name> [parameters]) <body>)
+     * Returns an interpreter for the scope restored from an image written by
+     * snapshot, which is read with a single memory mapping of the file.
      */
-    private RuntimeValue visitBuiltinDef(Ast.Function ast) throws EvaluateException {
-        if (ast.arguments().size() != 2) {
-            throw new EvaluateException("Builtin function def requires exactly 2 arguments.");
-        }
-        if (ast.arguments().getFirst() instanceof Ast.Variable variable) {
-            if (scope.resolve(variable.name(), true).isPresent()) {
-                throw new EvaluateException("Redefined identifier " + variable.name() + ".");
-            }
-            var value = visit(ast.arguments().getLast());
-            scope.define(variable.name(), value);
-            return value;
-        } else if (ast.arguments().getFirst() instanceof Ast.Function function) {
-            if (scope.resolve(function.name(), true).isPresent()) {
-                throw new EvaluateException("Redefined identifier " + function.name() + ".");
-            }
-            var parameters = new ArrayList<String>();
-            for (Ast parameter : function.arguments()) {
-                if (!(parameter instanceof Ast.Variable)) {
-                    throw new EvaluateException("Invalid function parameter form for builtin function def.");
-                }
-                parameters.add(((Ast.Variable) parameter).name());
-            }
-            var body = ast.arguments().getLast();
-            var parent = scope;
-            var definition = new RuntimeValue.Function(function.name(), arguments -> {
-                // Implemented in M3L5.5 recording
-                var child = new Scope(parent);
-                if (arguments.size() != parameters.size()) {
-                    throw new EvaluateException("Expected " + parameters.size() + " arguments, received " + arguments.size() + ".");
-                }
-                for (int i = 0; i < arguments.size(); i++) {
-                    child.define(parameters.get(i), arguments.get(i));
-                }
-                var current = scope;
-                try {
-                    scope = child;
-                    return visit(body);
-                } finally {
-                    scope = current;
-                }
-            });
-            scope.define(function.name(), definition);
-            return definition;
-        } else {
-            throw new EvaluateException("Invalid variable/function form for builtin function def.");
-        }
+    public static Interpreter restore(Path path) throws IOException {
+        return new Interpreter(Image.read(path));
     }
 
     /**
-     * Variable: (set! <name> <value>)
+     * Evaluates each input in order, passing its result to results on the
+     * calling thread, while up to capacity of the inputs after it are parsed
+     * on the executor (see Batch). Exceptions other than those parsing or
+     * evaluating an input are thrown, ending the batch.
      */
-    private RuntimeValue visitBuiltinSet(Ast.Function ast) throws EvaluateException {
-        if (ast.arguments().size() != 2) {
-            throw new EvaluateException("Builtin function set! requires exactly 2 arguments.");
-        } else if (ast.arguments().getFirst() instanceof Ast.Variable variableAst) {
-            if (scope.resolve(variableAst.name(), false).isEmpty()) {
-                throw new EvaluateException("Undefined variable " + ast.name() + ".");
-            }
-            var value = visit(ast.arguments().getLast());
-            scope.define(variableAst.name(), value);
-            return value;
-        } else {
-            throw new EvaluateException("Invalid variable form for builtin function set!.");
-        }
+    public void batch(Iterator<String> inputs, Executor parsers, int capacity, Consumer<Result> results) throws InterruptedException {
+        Batch.run(this, inputs, parsers, capacity, results);
     }
 
     /**
-     *  - Field: (object [<name> <value>])
-     *  - Method: (object [(<.name> [arguments]) <body>])
-     *     - Note: Since all functions require a name (Ast.Variable) and the
-     *       first element of this list is an Ast.Function, the parser returns
-     *       an Ast.Function with an empty name (""). In other words:
-     *       new Ast.Function("", new Ast.Function(".name", arguments), body);
+     * Compiles the ast (see Compiler) and evaluates it in the current scope.
+     * Exceptions are attached the position of the innermost call being
+     * evaluated, otherwise that of the ast.
      */
-    private RuntimeValue visitBuiltinObject(Ast.Function ast) {
-        throw new UnsupportedOperationException("TODO");
-    }
-
-    private RuntimeValue visitFunction(Ast.Function ast) throws EvaluateException {
-        var value = scope.resolve(ast.name(), false)
-            .orElseThrow(() -> new EvaluateException("Undefined function " + ast.name() + "."));
-        if (value instanceof RuntimeValue.Function function) {
-            var arguments = new ArrayList<RuntimeValue>();
-            for (Ast argument : ast.arguments()) {
-                arguments.add(visit(argument));
-            }
-            return function.definition().invoke(arguments);
-        } else {
-            throw new EvaluateException("RuntimeValue " + value + " (" + value.getClass() + ") is not an invokable function.");
+    public RuntimeValue visit(Ast ast) throws EvaluateException {
+        try {
+            var node = nodes != null ? nodes.get(ast, this::compile) : compile(ast);
+            return node.evaluate(scope);
+        } catch (EvaluateException e) {
+            throw e.at(ast.position());
         }
     }
 
-    private RuntimeValue visitMethod(Ast.Function ast) {
-        throw new UnsupportedOperationException("TODO");
+    private Node compile(Ast ast) {
+        var node = Compiler.compile(ast);
+        return pool != null ? Scheduler.rewrite(node, pool) : node;
+    }
+
+    public RuntimeValue visit(Ast.Number ast) {
+        return Functions.number(ast.value());
+    }
+
+    public RuntimeValue visit(Ast.Atom ast) {
+        return new RuntimeValue.Primitive(":" + ast.name());
+    }
+
+    public RuntimeValue visit(Ast.Variable ast) throws EvaluateException {
+        return visit((Ast) ast);
+    }
+
+    public RuntimeValue visit(Ast.Function ast) throws EvaluateException {
+        return visit((Ast) ast);
     }
 
 }
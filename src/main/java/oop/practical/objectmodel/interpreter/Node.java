@@ -0,0 +1,462 @@
+package oop.practical.objectmodel.interpreter;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Executable form of an Ast, produced by the Compiler. Nodes are evaluated
+ * against the scope passed in rather than any interpreter state, so a
+ * compiled tree (such as a function body) can be evaluated repeatedly.
+ */
+sealed interface Node {
+
+    RuntimeValue evaluate(Scope scope) throws EvaluateException;
+
+    record Constant(
+        RuntimeValue value
+    ) implements Node {
+
+        @Override
+        public RuntimeValue evaluate(Scope scope) {
+            return value;
+        }
+
+    }
+
+    /**
+     * A variable resolved by the Compiler: the scope depth frames up is
+     * either a frame defining the variable at the given index, or (index -1)
+     * the first scope the variable is resolved by name from.
+     */
+    record Variable(
+        String name,
+        int depth,
+        int index
+    ) implements Node {
+
+        @Override
+        public RuntimeValue evaluate(Scope scope) throws EvaluateException {
+            var value = lookup(scope);
+            if (value == null) {
+                throw new EvaluateException("Undefined variable " + name + ".");
+            }
+            return value;
+        }
+
+        /**
+         * Returns the value of the variable, or null if it is undefined.
+         */
+        RuntimeValue lookup(Scope scope) {
+            for (int i = 0; i < depth; i++) {
+                scope = scope.parent();
+            }
+            var value = index != -1 ? scope.get(index) : null;
+            //slots are empty until defined, in which case lookup continues
+            //by name as it would without lexical addressing.
+            return value != null ? value : scope.resolve(name, false).orElse(null);
+        }
+
+    }
+
+    record Do(
+        Node[] expressions
+    ) implements Node {
+
+        @Override
+        public RuntimeValue evaluate(Scope scope) throws EvaluateException {
+            RuntimeValue result = new RuntimeValue.Primitive(null);
+            for (Node expression : expressions) {
+                result = expression.evaluate(scope); //TODO: Scope?
+            }
+            return result;
+        }
+
+    }
+
+    record Def(
+        String name,
+        Node value
+    ) implements Node {
+
+        @Override
+        public RuntimeValue evaluate(Scope scope) throws EvaluateException {
+            if (scope.resolve(name, true).isPresent()) {
+                throw new EvaluateException("Redefined identifier " + name + ".");
+            }
+            var value = this.value.evaluate(scope);
+            scope.define(name, value);
+            return value;
+        }
+
+    }
+
+    /**
+     * Parameters are the slot indices of the arguments in the frame layout.
+     */
+    record DefFunction(
+        String name,
+        int[] parameters,
+        Shape layout,
+        Node body
+    ) implements Node {
+
+        @Override
+        public RuntimeValue evaluate(Scope scope) throws EvaluateException {
+            if (scope.resolve(name, true).isPresent()) {
+                throw new EvaluateException("Redefined identifier " + name + ".");
+            }
+            var definition = new RuntimeValue.Function(name, new Closure(scope, parameters, layout, body));
+            scope.define(name, definition);
+            return definition;
+        }
+
+    }
+
+    record Set(
+        String name,
+        Node value
+    ) implements Node {
+
+        @Override
+        public RuntimeValue evaluate(Scope scope) throws EvaluateException {
+            if (scope.resolve(name, false).isEmpty()) {
+                throw new EvaluateException("Undefined variable " + name + ".");
+            }
+            var value = this.value.evaluate(scope);
+            scope.define(name, value);
+            return value;
+        }
+
+    }
+
+    /**
+     * Members with a null key failed to compile and their value is a Fail.
+     */
+    record Object(
+        String name,
+        String[] keys,
+        boolean[] methods,
+        Node[] values
+    ) implements Node {
+
+        @Override
+        public RuntimeValue evaluate(Scope scope) throws EvaluateException {
+            var object = new RuntimeValue.Object(name, new Scope(scope, keys.length));
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null && object.scope().resolve(keys[i], true).isPresent()) {
+                    throw new EvaluateException("Redefined " + (methods[i] ? "method " : "field ") + keys[i] + ".");
+                }
+                var value = values[i].evaluate(scope);
+                if ("prototype".equals(keys[i])) {
+                    checkPrototype(object, value);
+                }
+                object.scope().define(keys[i], value);
+            }
+            return object;
+        }
+
+    }
+
+    /**
+     * Functions are invoked through the fixed-arity forms of their
+     * definitions when possible, see RuntimeValue.Function.Definition.
+     *
+     * Calls carry the position of their form (see Position), which is
+     * attached to exceptions thrown while evaluating them.
+     */
+    record Call(
+        Variable function,
+        Node[] arguments,
+        int position
+    ) implements Node {
+
+        @Override
+        public RuntimeValue evaluate(Scope scope) throws EvaluateException {
+            try {
+                return invoke(function(scope), scope);
+            } catch (EvaluateException e) {
+                throw e.at(position);
+            }
+        }
+
+        RuntimeValue.Function function(Scope scope) throws EvaluateException {
+            var value = this.function.lookup(scope);
+            if (value == null) {
+                throw new EvaluateException("Undefined function " + this.function.name() + ".");
+            } else if (value instanceof RuntimeValue.Function function) {
+                return function;
+            } else {
+                throw new EvaluateException("RuntimeValue " + value + " (" + value.getClass() + ") is not an invokable function.");
+            }
+        }
+
+        RuntimeValue invoke(RuntimeValue.Function function, Scope scope) throws EvaluateException {
+            var definition = function.definition();
+            if (Profiler.tracking()) {
+                return invoke(function, arguments(scope));
+            }
+            return switch (arguments.length) {
+                case 0 -> definition.invoke0();
+                case 1 -> definition.invoke1(arguments[0].evaluate(scope));
+                case 2 -> definition.invoke2(arguments[0].evaluate(scope), arguments[1].evaluate(scope));
+                case 3 -> definition.invoke3(arguments[0].evaluate(scope), arguments[1].evaluate(scope), arguments[2].evaluate(scope));
+                default -> definition.invoke(arguments(scope));
+            };
+        }
+
+        /**
+         * Invokes the function with arguments already evaluated.
+         */
+        RuntimeValue invoke(RuntimeValue.Function function, RuntimeValue[] arguments) throws EvaluateException {
+            if (!Profiler.tracking()) {
+                return function.definition().invoke(arguments);
+            }
+            var depth = Profiler.enter(Profiler.function(function.name()), position);
+            try {
+                return function.definition().invoke(arguments);
+            } finally {
+                Profiler.exit(depth);
+            }
+        }
+
+        /**
+         * Returns the frame of the closure for this call, see Closure.
+         */
+        Scope enter(Closure closure, Scope scope) throws EvaluateException {
+            return switch (arguments.length) {
+                case 0 -> closure.enter();
+                case 1 -> closure.enter(arguments[0].evaluate(scope));
+                case 2 -> closure.enter(arguments[0].evaluate(scope), arguments[1].evaluate(scope));
+                case 3 -> closure.enter(arguments[0].evaluate(scope), arguments[1].evaluate(scope), arguments[2].evaluate(scope));
+                default -> closure.enter(arguments(scope));
+            };
+        }
+
+        private RuntimeValue[] arguments(Scope scope) throws EvaluateException {
+            var arguments = new RuntimeValue[this.arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = this.arguments[i].evaluate(scope);
+            }
+            return arguments;
+        }
+
+    }
+
+    /**
+     * Methods defined along the prototype chain take precedence over the
+     * builtin methods (.prototype, .instance?, .clone) and field accessors,
+     * though only builtins with no arguments are shadowed by fields. Chain
+     * lookups are cached per call site, see InlineCache. The setter field
+     * name is non-null iff this call has the form of a setter.
+     *
+     * The receiver and arguments are evaluated before the method is looked
+     * up. Calls with up to two arguments (besides the receiver) hold them in
+     * first and second, otherwise all of them are evaluated into an array
+     * starting with the receiver.
+     */
+    record MethodCall(
+        String name,
+        String setter,
+        Node receiver,
+        Node[] arguments,
+        InlineCache method,
+        InlineCache field,
+        int position
+    ) implements Node {
+
+        @Override
+        public RuntimeValue evaluate(Scope scope) throws EvaluateException {
+            try {
+                var receiver = receiver(scope);
+                RuntimeValue first = null;
+                RuntimeValue second = null;
+                RuntimeValue[] all = null;
+                if (arguments.length > 2) {
+                    all = arguments(receiver, scope);
+                } else if (arguments.length > 0) {
+                    first = arguments[0].evaluate(scope);
+                    second = arguments.length == 2 ? arguments[1].evaluate(scope) : null;
+                }
+                return dispatch(method.lookup(receiver), receiver, first, second, all);
+            } catch (EvaluateException e) {
+                throw e.at(position);
+            }
+        }
+
+        RuntimeValue.Object receiver(Scope scope) throws EvaluateException {
+            var value = this.receiver.evaluate(scope);
+            if (!(value instanceof RuntimeValue.Object receiver)) {
+                throw new EvaluateException("RuntimeValue " + value + " (" + value.getClass() + ") is not an object.");
+            }
+            return receiver;
+        }
+
+        /**
+         * Returns the arguments including the receiver, which is first.
+         */
+        RuntimeValue[] arguments(RuntimeValue.Object receiver, Scope scope) throws EvaluateException {
+            var arguments = new RuntimeValue[this.arguments.length + 1];
+            arguments[0] = receiver;
+            for (int i = 0; i < this.arguments.length; i++) {
+                arguments[i + 1] = this.arguments[i].evaluate(scope);
+            }
+            return arguments;
+        }
+
+        /**
+         * Returns the frame of the closure for this call with the evaluated
+         * arguments, see Closure.
+         */
+        Scope enter(Closure closure, RuntimeValue.Object receiver, RuntimeValue first, RuntimeValue second, RuntimeValue[] all) throws EvaluateException {
+            return switch (arguments.length) {
+                case 0 -> closure.enter(receiver);
+                case 1 -> closure.enter(receiver, first);
+                case 2 -> closure.enter(receiver, first, second);
+                default -> closure.enter(all);
+            };
+        }
+
+        /**
+         * Invokes the method looked up along the prototype chain (null if
+         * undefined), otherwise the builtin methods and field accessors.
+         */
+        RuntimeValue dispatch(RuntimeValue method, RuntimeValue.Object receiver, RuntimeValue first, RuntimeValue second, RuntimeValue[] all) throws EvaluateException {
+            if (!Profiler.tracking()) {
+                return invoke(method, receiver, first, second, all);
+            }
+            var depth = Profiler.enter(Profiler.method(name), position);
+            try {
+                return invoke(method, receiver, first, second, all);
+            } finally {
+                Profiler.exit(depth);
+            }
+        }
+
+        private RuntimeValue invoke(RuntimeValue method, RuntimeValue.Object receiver, RuntimeValue first, RuntimeValue second, RuntimeValue[] all) throws EvaluateException {
+            if (method != null) {
+                if (method instanceof RuntimeValue.Function function) {
+                    return switch (arguments.length) {
+                        case 0 -> function.definition().invoke1(receiver);
+                        case 1 -> function.definition().invoke2(receiver, first);
+                        case 2 -> function.definition().invoke3(receiver, first, second);
+                        default -> function.definition().invoke(all);
+                    };
+                } else if (arguments.length == 0) {
+                    return method;
+                } else {
+                    throw new EvaluateException("RuntimeValue " + method + " (" + method.getClass() + ") is not an invokable method.");
+                }
+            }
+            if (name.equals(".instance?") && arguments.length == 1) {
+                for (var ancestor = InlineCache.prototype(receiver); ancestor != null; ancestor = InlineCache.prototype(ancestor)) {
+                    if (ancestor == first) {
+                        return new RuntimeValue.Primitive(":true");
+                    }
+                }
+                return new RuntimeValue.Primitive(":false");
+            } else if (setter != null) {
+                return setField(receiver, setter, first);
+            } else if (arguments.length == 0) {
+                var field = this.field.lookup(receiver);
+                if (field != null) {
+                    return field;
+                } else if (name.equals(".prototype")) {
+                    return new RuntimeValue.Primitive(null);
+                } else if (name.equals(".clone")) {
+                    return new RuntimeValue.Object(receiver.name(), receiver.scope().fork());
+                }
+                throw new EvaluateException("Undefined field " + name.substring(1) + ".");
+            }
+            throw new EvaluateException("Undefined method " + name + ".");
+        }
+
+    }
+
+    /**
+     * A call whose arguments are evaluated in parallel on the pool, see
+     * Scheduler.
+     */
+    record Parallel(
+        Call call,
+        ForkJoinPool pool
+    ) implements Node {
+
+        @Override
+        public RuntimeValue evaluate(Scope scope) throws EvaluateException {
+            try {
+                var function = call.function(scope);
+                return call.invoke(function, Scheduler.arguments(this, scope));
+            } catch (EvaluateException e) {
+                throw e.at(call.position());
+            }
+        }
+
+    }
+
+    /**
+     * A node compiled to a MethodHandle by the HandleCompiler, which
+     * evaluates it identically.
+     */
+    record Compiled(
+        Node node,
+        MethodHandle handle
+    ) implements Node {
+
+        @Override
+        public RuntimeValue evaluate(Scope scope) throws EvaluateException {
+            try {
+                return (RuntimeValue) handle.invokeExact(scope);
+            } catch (EvaluateException | RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new AssertionError(e);
+            }
+        }
+
+    }
+
+    record Fail(
+        String message
+    ) implements Node {
+
+        @Override
+        public RuntimeValue evaluate(Scope scope) throws EvaluateException {
+            throw new EvaluateException(message);
+        }
+
+    }
+
+    /**
+     * Methods are invoked with the receiver as the first argument and
+     * evaluate their body in a child of the receiver's scope, so fields are
+     * accessible as variables.
+     */
+    static RuntimeValue.Function method(String name, int[] parameters, Shape layout, Node body) {
+        return new RuntimeValue.Function(name, new Closure(null, parameters, layout, body));
+    }
+
+    private static RuntimeValue setField(RuntimeValue.Object receiver, String field, RuntimeValue value) throws EvaluateException {
+        Scheduler.mutating();
+        if (field.equals("prototype")) {
+            checkPrototype(receiver, value);
+        }
+        receiver.scope().define(field, value);
+        if (field.equals("prototype")) {
+            receiver.scope().invalidate(); //new keys invalidate in define
+        }
+        return value;
+    }
+
+    private static void checkPrototype(RuntimeValue.Object object, RuntimeValue prototype) throws EvaluateException {
+        if (prototype instanceof RuntimeValue.Object ancestor) {
+            for (; ancestor != null; ancestor = InlineCache.prototype(ancestor)) {
+                if (ancestor == object) {
+                    throw new EvaluateException("Cyclic prototype chain.");
+                }
+            }
+        } else if (!(prototype instanceof RuntimeValue.Primitive primitive) || primitive.value() != null) {
+            throw new EvaluateException("Invalid prototype " + prototype + " (" + prototype.getClass() + "), expected an object or null.");
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+package oop.practical.objectmodel.interpreter;
+
+import oop.practical.objectmodel.lisp.Ast;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Nodes compiled for asts evaluated by an interpreter (see
+ * Interpreter.cached), keyed by the identity of the ast, so evaluating the
+ * same ast again (such as one returned by a Lisp.Cache) skips compiling it
+ * and keeps the inline caches of its nodes warm. Nodes are safe to evaluate
+ * concurrently, so the cache is shared by the contexts and forks of the
+ * interpreter.
+ *
+ * Once capacity asts are cached the cache is cleared, as the asts (and
+ * nodes) would otherwise be kept alive by it indefinitely.
+ */
+final class NodeCache {
+
+    private final int capacity;
+    private final Map<Ast, Node> nodes = new IdentityHashMap<>();
+
+    NodeCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Expected a positive capacity, received " + capacity + ".");
+        }
+        this.capacity = capacity;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the node cached for the ast, compiling (outside the lock) and
+     * caching it otherwise.
+     */
+    Node get(Ast ast, Function<Ast, Node> compiler) {
+        synchronized (nodes) {
+            var node = nodes.get(ast);
+            if (node != null) {
+                return node;
+            }
+        }
+        var node = compiler.apply(ast);
+        synchronized (nodes) {
+            if (nodes.size() >= capacity) {
+                nodes.clear();
+            }
+            var cached = nodes.putIfAbsent(ast, node);
+            return cached != null ? cached : node;
+        }
+    }
+
+}
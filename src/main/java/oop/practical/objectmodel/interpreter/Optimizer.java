@@ -0,0 +1,218 @@
+package oop.practical.objectmodel.interpreter;
+
+import oop.practical.objectmodel.lisp.Ast;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optimization pass over the ast of a program, applied between parsing it
+ * (see Lisp.parse) and evaluating it (see Interpreter.visit):
+ *
+ *  - Calls to the arithmetic builtins with only number arguments are folded
+ *    into their result, computed by the builtin itself. Calls that fail,
+ *    such as (/ 1 0), are kept to fail when evaluated.
+ *  - Nested dos are flattened and literals before the last expression of a
+ *    do, which have no effect, are removed, as are dos of one expression.
+ *  - Top-level defs of literals (in the program's outermost do) are inlined
+ *    into the forms after them, which only run once the def succeeded.
+ *
+ * The program is assumed to be evaluated as a whole by an interpreter whose
+ * builtins have not been redefined, so the only bindings that can shadow a
+ * builtin or a top-level def are those in the program itself. Names bound
+ * anywhere in it (by def, set!, parameters, fields or setters) are neither
+ * folded nor inlined, except a top-level def bound nowhere else.
+ *
+ * Folded and inlined numbers take the position of the form they replace.
+ */
+public final class Optimizer {
+
+    private static final Map<String, RuntimeValue.Function.Definition> FOLDABLE = new HashMap<>();
+
+    static {
+        for (RuntimeValue.Function function : Functions.BUILTINS) {
+            FOLDABLE.put(function.name(), function.definition());
+        }
+    }
+
+    private final Map<String, Integer> bindings = new HashMap<>();
+    private final Map<String, Ast> constants = new HashMap<>();
+
+    private Optimizer() {}
+
+    public static Ast optimize(Ast program) {
+        var optimizer = new Optimizer();
+        optimizer.bindings(program);
+        if (program instanceof Ast.Function block && block.name().equals("do")) {
+            var expressions = new ArrayList<Ast>();
+            for (Ast expression : block.arguments()) {
+                var optimized = optimizer.visit(expression);
+                expressions.add(optimized);
+                optimizer.constant(optimized);
+            }
+            return optimizer.block(expressions, block.position());
+        }
+        return optimizer.visit(program);
+    }
+
+    /**
+     * Counts the bindings of each name in the program.
+     */
+    private void bindings(Ast ast) {
+        if (!(ast instanceof Ast.Function function)) {
+            return;
+        }
+        var arguments = function.arguments();
+        if ((function.name().equals("def") || function.name().equals("set!")) && arguments.size() == 2) {
+            if (arguments.getFirst() instanceof Ast.Variable variable) {
+                bind(variable.name());
+            } else if (arguments.getFirst() instanceof Ast.Function signature) {
+                bind(signature.name());
+                parameters(signature);
+            }
+            bindings(arguments.getLast());
+            return;
+        } else if (function.name().equals("object")) {
+            for (Ast argument : arguments) {
+                if (argument instanceof Ast.Function member && !member.name().isEmpty()) {
+                    bind(member.name());
+                    member.arguments().forEach(this::bindings);
+                } else if (argument instanceof Ast.Function member && member.arguments().size() == 2
+                    && member.arguments().getFirst() instanceof Ast.Function signature) {
+                    parameters(signature);
+                    bindings(member.arguments().getLast());
+                }
+            }
+            return;
+        } else if (function.name().startsWith(".") && function.name().endsWith("=") && arguments.size() == 2) {
+            bind(function.name().substring(1, function.name().length() - 1));
+        }
+        arguments.forEach(this::bindings);
+    }
+
+    private void parameters(Ast.Function signature) {
+        for (Ast parameter : signature.arguments()) {
+            if (parameter instanceof Ast.Variable variable) {
+                bind(variable.name());
+            }
+        }
+    }
+
+    private void bind(String name) {
+        bindings.merge(name, 1, Integer::sum);
+    }
+
+    private boolean unbound(String name) {
+        return !bindings.containsKey(name);
+    }
+
+    /**
+     * Records a top-level def of a literal bound nowhere else as a
+     * constant for the forms after it.
+     */
+    private void constant(Ast ast) {
+        if (ast instanceof Ast.Function def && def.name().equals("def") && def.arguments().size() == 2
+            && def.arguments().getFirst() instanceof Ast.Variable variable && bindings.getOrDefault(variable.name(), 0) == 1
+            && (def.arguments().getLast() instanceof Ast.Number || def.arguments().getLast() instanceof Ast.Atom)) {
+            constants.put(variable.name(), def.arguments().getLast());
+        }
+    }
+
+    private Ast visit(Ast ast) {
+        return switch (ast) {
+            case Ast.Number number -> number;
+            case Ast.Atom atom -> atom;
+            case Ast.Variable variable -> switch (constants.get(variable.name())) {
+                case Ast.Number number -> new Ast.Number(number.value(), variable.position());
+                case Ast.Atom atom -> new Ast.Atom(atom.name(), variable.position());
+                case null, default -> variable;
+            };
+            case Ast.Function function -> visit(function);
+        };
+    }
+
+    private Ast visit(Ast.Function function) {
+        var arguments = function.arguments();
+        return switch (function.name()) {
+            case "do" -> block(visit(arguments), function.position());
+            case "def", "set!" -> arguments.size() == 2
+                ? new Ast.Function(function.name(), List.of(arguments.getFirst(), visit(arguments.getLast())), function.position())
+                : function;
+            case "object" -> {
+                var members = new ArrayList<Ast>();
+                for (Ast argument : arguments) {
+                    if (argument instanceof Ast.Function member && member.arguments().size() == (member.name().isEmpty() ? 2 : 1)) {
+                        var value = member.arguments().getLast();
+                        var optimized = new ArrayList<>(member.arguments().subList(0, member.arguments().size() - 1));
+                        optimized.add(visit(value));
+                        members.add(new Ast.Function(member.name(), optimized, member.position()));
+                    } else {
+                        members.add(argument);
+                    }
+                }
+                yield new Ast.Function(function.name(), members, function.position());
+            }
+            default -> fold(new Ast.Function(function.name(), visit(arguments), function.position()));
+        };
+    }
+
+    private List<Ast> visit(List<Ast> asts) {
+        var optimized = new ArrayList<Ast>(asts.size());
+        for (Ast ast : asts) {
+            optimized.add(visit(ast));
+        }
+        return optimized;
+    }
+
+    /**
+     * Flattens nested dos (which have no scope of their own) and removes the
+     * literals before the last expression, returning the only expression
+     * left (if one). An empty do last is kept, as it evaluates to null.
+     */
+    private Ast block(List<Ast> expressions, int position) {
+        var flattened = new ArrayList<Ast>(expressions.size());
+        for (int i = 0; i < expressions.size(); i++) {
+            var expression = expressions.get(i);
+            if (expression instanceof Ast.Function block && block.name().equals("do") && (!block.arguments().isEmpty() || i < expressions.size() - 1)) {
+                flattened.addAll(block.arguments());
+            } else {
+                flattened.add(expression);
+            }
+        }
+        var live = new ArrayList<Ast>(flattened.size());
+        for (int i = 0; i < flattened.size(); i++) {
+            var expression = flattened.get(i);
+            if (i == flattened.size() - 1 || !(expression instanceof Ast.Number || expression instanceof Ast.Atom)) {
+                live.add(expression);
+            }
+        }
+        return live.size() == 1 ? live.getFirst() : new Ast.Function("do", live, position);
+    }
+
+    private Ast fold(Ast.Function call) {
+        var definition = FOLDABLE.get(call.name());
+        if (definition == null || !unbound(call.name())) {
+            return call;
+        }
+        var arguments = new RuntimeValue[call.arguments().size()];
+        for (int i = 0; i < arguments.length; i++) {
+            if (!(call.arguments().get(i) instanceof Ast.Number number)) {
+                return call;
+            }
+            arguments[i] = Functions.number(number.value());
+        }
+        try {
+            return switch (definition.invoke(arguments)) {
+                case RuntimeValue.Integer integer -> new Ast.Number(BigDecimal.valueOf(integer.value()), call.position());
+                case RuntimeValue.Primitive primitive when primitive.value() instanceof BigDecimal number -> new Ast.Number(number, call.position());
+                default -> call;
+            };
+        } catch (EvaluateException e) {
+            return call; //fails when evaluated
+        }
+    }
+
+}
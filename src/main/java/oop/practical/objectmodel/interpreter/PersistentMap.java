@@ -0,0 +1,175 @@
+package oop.practical.objectmodel.interpreter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Persistent hash array mapped trie from names to values, backing
+ * persistent scopes (see Scope.persistent). Maps are never modified: put
+ * copies the path to the entry (at most 7 levels of up to 32 branches) and
+ * shares everything else, so copying a map is free.
+ *
+ * Entries record the order their key was first put in, which entries
+ * restores so persistent scopes iterate in definition order like
+ * dictionary scopes.
+ */
+final class PersistentMap {
+
+    static final PersistentMap EMPTY = new PersistentMap(new Bitmap(0, new java.lang.Object[0]), 0, 0);
+
+    private final Bitmap root;
+    private final int size;
+    private final int order;
+
+    record Entry(String key, RuntimeValue value, int hash, int order) {}
+
+    private PersistentMap(Bitmap root, int size, int order) {
+        this.root = root;
+        this.size = size;
+        this.order = order;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the value of the key, or null if it is undefined.
+     */
+    RuntimeValue get(String key) {
+        var entry = entry(key);
+        return entry != null ? entry.value() : null;
+    }
+
+    PersistentMap put(String key, RuntimeValue value) {
+        var existing = entry(key);
+        var entry = existing != null
+            ? new Entry(key, value, existing.hash(), existing.order())
+            : new Entry(key, value, hash(key), order);
+        return existing != null
+            ? new PersistentMap(root.put(0, entry), size, order)
+            : new PersistentMap(root.put(0, entry), size + 1, order + 1);
+    }
+
+    /**
+     * Returns the entries in the order their keys were first put.
+     */
+    List<Entry> entries() {
+        var entries = new ArrayList<Entry>(size);
+        collect(root, entries);
+        entries.sort(Comparator.comparingInt(Entry::order));
+        return entries;
+    }
+
+    private Entry entry(String key) {
+        var hash = hash(key);
+        java.lang.Object node = root;
+        for (int shift = 0; ; shift += 5) {
+            switch (node) {
+                case Bitmap bitmap -> {
+                    var bit = 1 << ((hash >>> shift) & 31);
+                    if ((bitmap.bitmap() & bit) == 0) {
+                        return null;
+                    }
+                    node = bitmap.children()[Integer.bitCount(bitmap.bitmap() & (bit - 1))];
+                }
+                case Collision collision -> {
+                    for (Entry entry : collision.entries()) {
+                        if (entry.key().equals(key)) {
+                            return entry;
+                        }
+                    }
+                    return null;
+                }
+                case Entry entry -> {
+                    return entry.hash() == hash && entry.key().equals(key) ? entry : null;
+                }
+                default -> throw new AssertionError();
+            }
+        }
+    }
+
+    private static void collect(java.lang.Object node, List<Entry> entries) {
+        switch (node) {
+            case Bitmap bitmap -> {
+                for (java.lang.Object child : bitmap.children()) {
+                    collect(child, entries);
+                }
+            }
+            case Collision collision -> entries.addAll(List.of(collision.entries()));
+            case Entry entry -> entries.add(entry);
+            default -> throw new AssertionError();
+        }
+    }
+
+    private static int hash(String key) {
+        var hash = key.hashCode();
+        return hash ^ hash >>> 16;
+    }
+
+    /**
+     * Branch whose children (entries or branches) are those of the set bits
+     * of the bitmap, each bit being 5 bits of the hash at this level.
+     */
+    private record Bitmap(int bitmap, java.lang.Object[] children) {
+
+        private Bitmap put(int shift, Entry entry) {
+            var bit = 1 << ((entry.hash() >>> shift) & 31);
+            var index = Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                var children = new java.lang.Object[this.children.length + 1];
+                System.arraycopy(this.children, 0, children, 0, index);
+                children[index] = entry;
+                System.arraycopy(this.children, index, children, index + 1, this.children.length - index);
+                return new Bitmap(bitmap | bit, children);
+            }
+            var children = this.children.clone();
+            children[index] = switch (children[index]) {
+                case Bitmap child -> child.put(shift + 5, entry);
+                case Collision child -> child.put(entry);
+                case Entry child when child.key().equals(entry.key()) -> entry;
+                case Entry child -> merge(shift + 5, child, entry);
+                default -> throw new AssertionError();
+            };
+            return new Bitmap(bitmap, children);
+        }
+
+        private static java.lang.Object merge(int shift, Entry first, Entry second) {
+            if (shift >= 32) {
+                return new Collision(new Entry[] {first, second});
+            }
+            var firstBit = 1 << ((first.hash() >>> shift) & 31);
+            var secondBit = 1 << ((second.hash() >>> shift) & 31);
+            if (firstBit == secondBit) {
+                return new Bitmap(firstBit, new java.lang.Object[] {merge(shift + 5, first, second)});
+            }
+            return new Bitmap(firstBit | secondBit, Integer.compareUnsigned(firstBit, secondBit) < 0
+                ? new java.lang.Object[] {first, second}
+                : new java.lang.Object[] {second, first});
+        }
+
+    }
+
+    /**
+     * Entries whose hashes are identical, below the last level.
+     */
+    private record Collision(Entry[] entries) {
+
+        private Collision put(Entry entry) {
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].key().equals(entry.key())) {
+                    var entries = this.entries.clone();
+                    entries[i] = entry;
+                    return new Collision(entries);
+                }
+            }
+            var entries = Arrays.copyOf(this.entries, this.entries.length + 1);
+            entries[this.entries.length] = entry;
+            return new Collision(entries);
+        }
+
+    }
+
+}
@@ -0,0 +1,146 @@
+package oop.practical.objectmodel.interpreter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Prints values directly to an Appendable, reading object fields from
+ * their slots without copying them. An object reached again while it is
+ * being printed (a cycle) is printed as (object [name] ...).
+ *
+ * The rendering of an object printed by toString is cached in its scope
+ * along with the mutation count (see Scope.mutations) of every object
+ * scope it was rendered from, so it is reused until any of those objects
+ * is mutated. A cached rendering is only reused for a nested object if
+ * none of the objects it was rendered from are being printed, as a cycle
+ * would otherwise be printed differently.
+ */
+final class Printer {
+
+    record Rendering(String text, Scope[] scopes, int[] mutations) {
+
+        private boolean valid() {
+            for (int i = 0; i < scopes.length; i++) {
+                if (scopes[i].mutations() != mutations[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+    private final Appendable output;
+    private final Map<Scope, Boolean> path = new IdentityHashMap<>();
+    private final Map<Scope, Integer> scopes;
+
+    /**
+     * Records the scopes printed (with their mutation counts) if non-null.
+     */
+    private Printer(Appendable output, Map<Scope, Integer> scopes) {
+        this.output = output;
+        this.scopes = scopes;
+    }
+
+    static void print(RuntimeValue value, Appendable output) throws IOException {
+        new Printer(output, null).value(value);
+    }
+
+    static String toString(RuntimeValue.Object object) {
+        var rendering = object.scope().rendering();
+        if (rendering != null && rendering.valid()) {
+            return rendering.text();
+        }
+        var builder = new StringBuilder();
+        var printer = new Printer(builder, new IdentityHashMap<>());
+        try {
+            printer.object(object);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); //unreachable for a StringBuilder
+        }
+        var scopes = new ArrayList<>(printer.scopes.keySet());
+        var mutations = new int[scopes.size()];
+        for (int i = 0; i < mutations.length; i++) {
+            mutations[i] = printer.scopes.get(scopes.get(i));
+        }
+        rendering = new Rendering(builder.toString(), scopes.toArray(Scope[]::new), mutations);
+        object.scope().rendering(rendering);
+        return rendering.text();
+    }
+
+    private void value(RuntimeValue value) throws IOException {
+        if (value instanceof RuntimeValue.Object object) {
+            object(object);
+        } else {
+            output.append(value.toString());
+        }
+    }
+
+    private void object(RuntimeValue.Object object) throws IOException {
+        var scope = object.scope();
+        if (path.containsKey(scope)) {
+            header(object);
+            output.append(" ...)");
+            return;
+        }
+        var rendering = scope.rendering();
+        if (rendering != null && rendering.valid() && disjoint(rendering)) {
+            output.append(rendering.text());
+            if (scopes != null) {
+                for (int i = 0; i < rendering.scopes().length; i++) {
+                    scopes.putIfAbsent(rendering.scopes()[i], rendering.mutations()[i]);
+                }
+            }
+            return;
+        }
+        if (scopes != null) {
+            //read before the fields, so a concurrent mutation invalidates it
+            scopes.putIfAbsent(scope, scope.mutations());
+        }
+        path.put(scope, true);
+        header(object);
+        var shape = scope.shape();
+        if (shape != null) {
+            for (int i = 0; i < shape.size(); i++) {
+                var value = scope.get(i);
+                if (value != null) {
+                    field(shape.key(i), value);
+                }
+            }
+        } else {
+            for (var entry : scope.collect(true).entrySet()) {
+                field(entry.getKey(), entry.getValue());
+            }
+        }
+        output.append(')');
+        path.remove(scope);
+    }
+
+    private void field(String key, RuntimeValue value) throws IOException {
+        if (!key.startsWith(".")) { //filter out methods
+            output.append(" [").append(key).append(' ');
+            value(value);
+            output.append(']');
+        }
+    }
+
+    private void header(RuntimeValue.Object object) throws IOException {
+        output.append("(object");
+        if (object.name() != null) {
+            output.append(' ').append(object.name());
+        }
+    }
+
+    private boolean disjoint(Rendering rendering) {
+        for (Scope scope : rendering.scopes()) {
+            if (path.containsKey(scope)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
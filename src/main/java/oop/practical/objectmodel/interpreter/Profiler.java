@@ -0,0 +1,364 @@
+package oop.practical.objectmodel.interpreter;
+
+import oop.practical.objectmodel.lisp.Position;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Opt-in profiler recording, per function name and per method selector,
+ * call counts, inclusive and exclusive time (see Histogram) and allocated
+ * bytes, and for selectors the prototype chain lookups of their call sites
+ * (see InlineCache): the number of lookups, the rate they hit the cache and
+ * the depth along the chain the key was found (or the length of the chain
+ * if it was not).
+ *
+ * Calls are tracked by call sites (see Node.Call and Node.MethodCall) on a
+ * per thread stack of calls in progress, which attributes each call's time
+ * to its caller's children and is what the Sampler samples. A tail call,
+ * which replaces its caller (see Closure.evaluate), ends the caller's call.
+ * Since compiled closures (see HandleCompiler) bypass call sites, they are
+ * interpreted while calls are tracked. Otherwise, the only overhead is call
+ * sites and closures reading whether calls are tracked.
+ */
+public final class Profiler implements ProfilerMXBean {
+
+    public static final Profiler INSTANCE = new Profiler();
+
+    private static volatile boolean enabled = false;
+    private static volatile boolean tracking = false;
+    private static int samplers = 0;
+
+    private static final Map<String, Profile> FUNCTIONS = new ConcurrentHashMap<>();
+    private static final Map<String, Profile> METHODS = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Stack> STACKS = ThreadLocal.withInitial(Stack::new);
+    private static final Set<Stack> LIVE_STACKS = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    /**
+     * Time is in nanoseconds. Lookups are by the selector's call sites,
+     * which look up both the method and (for getters) the field, and are
+     * zero for functions.
+     */
+    public record Statistics(
+        String name,
+        long calls,
+        Latency inclusive,
+        Latency exclusive,
+        long allocatedBytes,
+        long exclusiveAllocatedBytes,
+        long lookups,
+        double cacheHitRate,
+        double meanLookupDepth,
+        long maxLookupDepth
+    ) {}
+
+    public record Latency(
+        long total,
+        long p50,
+        long p90,
+        long p99,
+        long max
+    ) {
+
+        private static Latency of(Histogram histogram) {
+            return new Latency(histogram.total(), histogram.percentile(50), histogram.percentile(90), histogram.percentile(99), histogram.max());
+        }
+
+    }
+
+    static final class Profile {
+
+        private final String name;
+        private final LongAdder calls = new LongAdder();
+        private final Histogram inclusive = new Histogram();
+        private final Histogram exclusive = new Histogram();
+        private final LongAdder allocated = new LongAdder();
+        private final LongAdder exclusiveAllocated = new LongAdder();
+        private final LongAdder lookups = new LongAdder();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder depth = new LongAdder();
+        private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+
+        private Profile(String name) {
+            this.name = name;
+        }
+
+        private Statistics statistics() {
+            var lookups = this.lookups.sum();
+            return new Statistics(name, calls.sum(), Latency.of(inclusive), Latency.of(exclusive), allocated.sum(), exclusiveAllocated.sum(),
+                lookups, lookups == 0 ? 0 : (double) hits.sum() / lookups, lookups == 0 ? 0 : (double) depth.sum() / lookups, maxDepth.get());
+        }
+
+    }
+
+    private Profiler() {}
+
+    /**
+     * Registers the profiler with the platform MBean server, if it is not
+     * already registered.
+     */
+    public static void register() throws JMException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName("oop.practical.objectmodel:type=Profiler"));
+        } catch (InstanceAlreadyExistsException e) {
+            //registered by another interpreter
+        }
+    }
+
+    static boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns whether call sites track calls, which they do while the
+     * profiler is enabled or a Sampler is running.
+     */
+    static boolean tracking() {
+        return tracking;
+    }
+
+    static synchronized void sampling(boolean started) {
+        samplers += started ? 1 : -1;
+        tracking = enabled || samplers > 0;
+    }
+
+    /**
+     * Returns the calls in progress on each thread with any, outermost
+     * first, as the name and (if known) the position of the call, such as
+     * f@3:5. Stacks are read without synchronizing with the
+     * threads running them, so a stack read mid-call may mix its states
+     * before and after the call, which is negligible for sampling.
+     */
+    static List<String[]> stacks() {
+        Stack[] stacks;
+        synchronized (LIVE_STACKS) {
+            stacks = LIVE_STACKS.toArray(Stack[]::new);
+        }
+        var result = new ArrayList<String[]>();
+        for (Stack stack : stacks) {
+            var frames = stack.frames;
+            var size = Math.min(stack.size, frames.length);
+            var names = new String[size];
+            for (int i = 0; i < size; i++) {
+                var frame = frames[i];
+                var profile = frame != null ? frame.profile : null;
+                if (profile == null) {
+                    size = i;
+                    break;
+                }
+                var position = frame.position;
+                names[i] = position == Position.NONE ? profile.name : profile.name + "@" + Position.toString(position);
+            }
+            if (size > 0) {
+                result.add(Arrays.copyOf(names, size));
+            }
+        }
+        return result;
+    }
+
+    static Profile function(String name) {
+        return FUNCTIONS.computeIfAbsent(name, Profile::new);
+    }
+
+    static Profile method(String selector) {
+        return METHODS.computeIfAbsent(selector, Profile::new);
+    }
+
+    /**
+     * Starts a call at the position of its call site, returning the depth
+     * of the stack to end it at (see exit) as a call may be replaced by tail
+     * calls before it returns.
+     */
+    static int enter(Profile profile, int position) {
+        var stack = STACKS.get();
+        stack.push(profile, position);
+        return stack.size - 1;
+    }
+
+    /**
+     * Ends the calls on the stack down to the depth returned by enter.
+     */
+    static void exit(int depth) {
+        var stack = STACKS.get();
+        while (stack.size > depth) {
+            stack.pop();
+        }
+    }
+
+    /**
+     * Replaces the current call with a tail call.
+     */
+    static void tail(Profile profile, int position) {
+        var stack = STACKS.get();
+        if (stack.size > 0) {
+            stack.pop();
+        }
+        stack.push(profile, position);
+    }
+
+    static void lookup(String selector, boolean hit, int depth) {
+        var profile = method(selector);
+        profile.lookups.increment();
+        if (hit) {
+            profile.hits.increment();
+        }
+        profile.depth.add(depth);
+        profile.maxDepth.accumulate(depth);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        synchronized (Profiler.class) {
+            Profiler.enabled = enabled;
+            tracking = enabled || samplers > 0;
+        }
+    }
+
+    @Override
+    public void reset() {
+        FUNCTIONS.clear();
+        METHODS.clear();
+    }
+
+    @Override
+    public List<Statistics> getFunctions() {
+        return statistics(FUNCTIONS);
+    }
+
+    @Override
+    public List<Statistics> getMethods() {
+        return statistics(METHODS);
+    }
+
+    @Override
+    public String dump() {
+        var builder = new StringBuilder();
+        table("Function", getFunctions(), builder);
+        table("Method", getMethods(), builder);
+        return builder.toString();
+    }
+
+    private static List<Statistics> statistics(Map<String, Profile> profiles) {
+        return profiles.values().stream()
+            .map(Profile::statistics)
+            .sorted(Comparator.comparingLong((Statistics s) -> s.exclusive().total()).reversed())
+            .toList();
+    }
+
+    /**
+     * Appends a table of the statistics, with times in microseconds and
+     * allocations in kilobytes.
+     */
+    private static void table(String title, List<Statistics> statistics, StringBuilder builder) {
+        builder.append(String.format("%-24s %10s %12s %10s %10s %12s %10s %10s %12s %10s %8s %6s%n",
+            title, "calls", "incl total", "incl p50", "incl p99", "excl total", "excl p50", "excl p99", "excl alloc", "lookups", "hit %", "depth"));
+        for (Statistics s : statistics) {
+            builder.append(String.format("%-24s %10d %12.1f %10.2f %10.2f %12.1f %10.2f %10.2f %12.1f %10d %8.1f %6.2f%n",
+                s.name(), s.calls(), s.inclusive().total() / 1e3, s.inclusive().p50() / 1e3, s.inclusive().p99() / 1e3,
+                s.exclusive().total() / 1e3, s.exclusive().p50() / 1e3, s.exclusive().p99() / 1e3, s.exclusiveAllocatedBytes() / 1e3,
+                s.lookups(), 100 * s.cacheHitRate(), s.meanLookupDepth()));
+        }
+    }
+
+    /**
+     * Calls in progress on a thread, whose frames are reused. Calls are only
+     * timed if the profiler was enabled when they started.
+     */
+    private static final class Stack {
+
+        private Frame[] frames = new Frame[16];
+        private int size = 0;
+
+        private Stack() {
+            LIVE_STACKS.add(this);
+        }
+
+        private void push(Profile profile, int position) {
+            if (size == frames.length) {
+                frames = Arrays.copyOf(frames, 2 * size);
+            }
+            var frame = frames[size];
+            if (frame == null) {
+                frame = frames[size] = new Frame();
+            }
+            frame.profile = profile;
+            frame.position = position;
+            frame.timed = enabled;
+            if (frame.timed) {
+                frame.children = 0;
+                frame.childrenAllocated = 0;
+                frame.allocated = Allocation.current();
+                frame.start = System.nanoTime();
+            }
+            size++;
+        }
+
+        private void pop() {
+            var frame = frames[--size];
+            if (!frame.timed) {
+                frame.profile = null;
+                return;
+            }
+            var end = System.nanoTime();
+            var inclusive = end - frame.start;
+            var allocated = Math.max(Allocation.current() - frame.allocated, 0);
+            var profile = frame.profile;
+            profile.calls.increment();
+            profile.inclusive.record(inclusive);
+            profile.exclusive.record(inclusive - frame.children);
+            profile.allocated.add(allocated);
+            profile.exclusiveAllocated.add(allocated - frame.childrenAllocated);
+            frame.profile = null;
+            if (size > 0) {
+                frames[size - 1].children += inclusive;
+                frames[size - 1].childrenAllocated += allocated;
+            }
+        }
+
+    }
+
+    private static final class Frame {
+        private Profile profile;
+        private int position;
+        private boolean timed;
+        private long start;
+        private long children;
+        private long allocated;
+        private long childrenAllocated;
+    }
+
+    /**
+     * Reads the bytes allocated by the current thread, if supported (which
+     * excludes virtual threads), loading the management classes only once
+     * the profiler is used.
+     */
+    private static final class Allocation {
+
+        private static final com.sun.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+            && threads.isThreadAllocatedMemorySupported() ? threads : null;
+
+        private static long current() {
+            return THREADS != null ? Math.max(THREADS.getCurrentThreadAllocatedBytes(), 0) : 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,35 @@
+package oop.practical.objectmodel.interpreter;
+
+import java.util.List;
+
+/**
+ * Management interface of the Profiler, registered as
+ * oop.practical.objectmodel:type=Profiler (see Profiler.register).
+ */
+public interface ProfilerMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    /**
+     * Discards everything recorded so far.
+     */
+    void reset();
+
+    /**
+     * Returns the statistics of each function name, by exclusive time.
+     */
+    List<Profiler.Statistics> getFunctions();
+
+    /**
+     * Returns the statistics of each method selector, by exclusive time.
+     */
+    List<Profiler.Statistics> getMethods();
+
+    /**
+     * Returns the statistics as a table of text, as Main prints them.
+     */
+    String dump();
+
+}
@@ -1,10 +1,19 @@
 package oop.practical.objectmodel.interpreter;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
 
 public sealed interface RuntimeValue {
 
+    /**
+     * Prints this value (as toString would) directly to the output, without
+     * building the string first. See Printer.
+     */
+    default void print(Appendable output) throws IOException {
+        Printer.print(this, output);
+    }
+
     record Primitive(
         java.lang.Object value
     ) implements RuntimeValue {
@@ -16,14 +25,73 @@ public sealed interface RuntimeValue {
 
     }
 
+    /**
+     * Integral number fitting in a long, printed identically to the
+     * equivalent BigDecimal (with scale 0). See Functions.number.
+     */
+    record Integer(
+        long value
+    ) implements RuntimeValue {
+
+        private static final Integer[] CACHE = new Integer[1024 + 128];
+
+        static {
+            for (int i = 0; i < CACHE.length; i++) {
+                CACHE[i] = new Integer(i - 128);
+            }
+        }
+
+        static Integer of(long value) {
+            return value >= -128 && value < 1024 ? CACHE[(int) value + 128] : new Integer(value);
+        }
+
+        @Override
+        public String toString() {
+            return Long.toString(value);
+        }
+
+    }
+
     record Function(
         String name,
         Definition definition
     ) implements RuntimeValue {
 
+        /**
+         * Calls are made through the fixed-arity forms (invoke0 to invoke3)
+         * or the array form, which the interpreter's definitions (builtins
+         * and closures) implement without allocating the arguments. Other
+         * definitions only implement the list form, which the rest adapt to.
+         */
         @FunctionalInterface
         interface Definition {
+
             RuntimeValue invoke(List<RuntimeValue> arguments) throws EvaluateException;
+
+            /**
+             * The arguments array is owned by the caller and must not be
+             * modified or retained.
+             */
+            default RuntimeValue invoke(RuntimeValue[] arguments) throws EvaluateException {
+                return invoke(Arrays.asList(arguments));
+            }
+
+            default RuntimeValue invoke0() throws EvaluateException {
+                return invoke(List.of());
+            }
+
+            default RuntimeValue invoke1(RuntimeValue first) throws EvaluateException {
+                return invoke(List.of(first));
+            }
+
+            default RuntimeValue invoke2(RuntimeValue first, RuntimeValue second) throws EvaluateException {
+                return invoke(List.of(first, second));
+            }
+
+            default RuntimeValue invoke3(RuntimeValue first, RuntimeValue second, RuntimeValue third) throws EvaluateException {
+                return invoke(List.of(first, second, third));
+            }
+
         }
 
         @Override
@@ -38,14 +106,13 @@ public sealed interface RuntimeValue {
         Scope scope
     ) implements RuntimeValue {
 
+        /**
+         * Cached until the object (or any object printed within it) is
+         * mutated, see Printer.
+         */
         @Override
         public String toString() {
-            var name = this.name != null ? " " + this.name : "";
-            var fields = scope.collect(true).entrySet().stream()
-                .filter(e -> !e.getKey().startsWith(".")) //filter out methods
-                .map(e -> " [" + e.getKey() + " " + e.getValue() + "]")
-                .collect(Collectors.joining(""));
-            return "(object" + name + fields + ")";
+            return Printer.toString(this);
         }
 
     }
@@ -0,0 +1,87 @@
+package oop.practical.objectmodel.interpreter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Samples the stacks of Lisp calls in progress on every thread (see
+ * Profiler.stacks) at a fixed interval on a daemon thread, counting how
+ * often each stack was sampled. Calls are tracked while any sampler is
+ * running, which (unlike the Profiler) does not time them.
+ *
+ * The counts are written as collapsed stacks, one "outer;inner count" line
+ * per stack, which flame graph tools (flamegraph.pl, speedscope) read.
+ */
+public final class Sampler implements Closeable {
+
+    private final Duration interval;
+    private final Map<String, Long> counts = new HashMap<>();
+    private final Thread thread;
+    private boolean closed = false;
+
+    public Sampler(Duration interval) {
+        this.interval = interval;
+        Profiler.sampling(true);
+        thread = Thread.ofPlatform().daemon().name("sampler").start(this::sample);
+    }
+
+    private void sample() {
+        while (true) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            var stacks = Profiler.stacks();
+            synchronized (counts) {
+                for (String[] stack : stacks) {
+                    for (int i = 0; i < stack.length; i++) {
+                        stack[i] = stack[i].replace(';', ':'); //the frame separator
+                    }
+                    counts.merge(String.join(";", stack), 1L, Long::sum);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the stacks sampled so far as collapsed stacks.
+     */
+    public void write(Appendable output) throws IOException {
+        synchronized (counts) {
+            for (var entry : counts.entrySet()) {
+                output.append(entry.getKey()).append(' ').append(String.valueOf(entry.getValue())).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Stops sampling, waiting for the sampling thread to finish, after which
+     * the stacks sampled can still be written.
+     */
+    public synchronized void stop() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Profiler.sampling(false);
+    }
+
+    /**
+     * Stops sampling, see stop.
+     */
+    @Override
+    public void close() {
+        stop();
+    }
+
+}
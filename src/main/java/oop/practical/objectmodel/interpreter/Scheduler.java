@@ -0,0 +1,313 @@
+package oop.practical.objectmodel.interpreter;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opt-in parallel evaluation of the arguments of calls on a ForkJoinPool
+ * (see Interpreter.parallel).
+ *
+ * Calls are rewritten to Node.Parallel when at least two arguments contain
+ * calls, as constants and variables are never worth forking, and no
+ * argument has side effects on the caller's scope, being free of def, set!
+ * and setters. The functions they call are only known at runtime, where
+ * def and set! only define in the callee's frame and setters, the only way
+ * to mutate shared objects, abort the parallel evaluation before mutating
+ * anything (see Impure), which is then evaluated again sequentially.
+ * Functions defined in Java are assumed to have no side effects.
+ *
+ * The first argument is evaluated by the calling thread and the rest are
+ * forked, then joined in order, so the result (or exception) is the same
+ * as evaluating them sequentially: an exception is thrown once all the
+ * arguments before it are evaluated, cancelling the arguments after it.
+ * Arguments are evaluated sequentially while the pool already has surplus
+ * work queued, which is the granularity cutoff at runtime.
+ */
+final class Scheduler {
+
+    private static final int SURPLUS = 3;
+
+    /**
+     * The argument evaluated by each thread, whose cancellation is checked
+     * by Closure.evaluate.
+     */
+    private static final ThreadLocal<Task> CURRENT = new ThreadLocal<>();
+    private static final AtomicInteger ACTIVE = new AtomicInteger();
+
+    private Scheduler() {}
+
+    /**
+     * Thrown by setters evaluated in a parallel argument, which is always
+     * caught by the scheduler.
+     */
+    private static final class Impure extends RuntimeException {
+
+        private static final Impure INSTANCE = new Impure();
+
+        private Impure() {
+            super(null, null, false, false);
+        }
+
+    }
+
+    private static final class Task extends RecursiveAction {
+
+        private final Node node;
+        private final Scope scope;
+        private final Task parent;
+        private volatile boolean cancelled = false;
+        private RuntimeValue value;
+        private Throwable failure;
+
+        private Task(Node node, Scope scope, Task parent) {
+            this.node = node;
+            this.scope = scope;
+            this.parent = parent;
+        }
+
+        /**
+         * Evaluates the argument, recording its value or failure so that it
+         * is rethrown as is by the thread joining it.
+         */
+        @Override
+        protected void compute() {
+            var previous = CURRENT.get();
+            CURRENT.set(this);
+            try {
+                if (cancelled()) {
+                    throw new EvaluateException("Evaluation interrupted.");
+                }
+                value = node.evaluate(scope);
+            } catch (EvaluateException | RuntimeException | Error e) {
+                failure = e;
+            } finally {
+                CURRENT.set(previous);
+            }
+        }
+
+        private boolean cancelled() {
+            for (var task = this; task != null; task = task.parent) {
+                if (task.cancelled) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+    }
+
+    /**
+     * Returns the node evaluating the arguments of calls in parallel where
+     * possible, rewriting function and method bodies as well.
+     */
+    static Node rewrite(Node node, ForkJoinPool pool) {
+        return switch (node) {
+            case Node.Do block -> new Node.Do(rewrite(block.expressions(), pool));
+            case Node.Def def -> new Node.Def(def.name(), rewrite(def.value(), pool));
+            case Node.DefFunction def -> new Node.DefFunction(def.name(), def.parameters(), def.layout(), rewrite(def.body(), pool));
+            case Node.Set set -> new Node.Set(set.name(), rewrite(set.value(), pool));
+            case Node.Object object -> new Node.Object(object.name(), object.keys(), object.methods(), rewrite(object.values(), pool));
+            case Node.Constant constant when constant.value() instanceof RuntimeValue.Function function
+                && function.definition() instanceof Closure closure && closure.scope() == null ->
+                new Node.Constant(Node.method(function.name(), closure.parameters(), closure.layout(), rewrite(closure.body(), pool)));
+            case Node.Call call -> {
+                var rewritten = new Node.Call(call.function(), rewrite(call.arguments(), pool), call.position());
+                yield parallel(rewritten.arguments()) ? new Node.Parallel(rewritten, pool) : rewritten;
+            }
+            case Node.MethodCall call -> new Node.MethodCall(call.name(), call.setter(), rewrite(call.receiver(), pool), rewrite(call.arguments(), pool),
+                call.method(), call.field(), call.position());
+            default -> node;
+        };
+    }
+
+    private static Node[] rewrite(Node[] nodes, ForkJoinPool pool) {
+        var rewritten = new Node[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            rewritten[i] = rewrite(nodes[i], pool);
+        }
+        return rewritten;
+    }
+
+    private static boolean parallel(Node[] arguments) {
+        var calls = 0;
+        for (Node argument : arguments) {
+            if (!pure(argument)) {
+                return false;
+            } else if (calls(argument)) {
+                calls++;
+            }
+        }
+        return calls >= 2;
+    }
+
+    /**
+     * Returns whether the node has no side effects on the scope it is
+     * evaluated in, nor any setters.
+     */
+    private static boolean pure(Node node) {
+        return switch (node) {
+            case Node.Def def -> false;
+            case Node.DefFunction def -> false;
+            case Node.Set set -> false;
+            case Node.Do block -> all(block.expressions());
+            case Node.Object object -> all(object.values());
+            case Node.Call call -> all(call.arguments());
+            case Node.Parallel parallel -> all(parallel.call().arguments());
+            case Node.MethodCall call -> call.setter() == null && pure(call.receiver()) && all(call.arguments());
+            default -> true;
+        };
+    }
+
+    private static boolean all(Node[] nodes) {
+        for (Node node : nodes) {
+            if (!pure(node)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean calls(Node node) {
+        return switch (node) {
+            case Node.Call call -> true;
+            case Node.Parallel parallel -> true;
+            case Node.MethodCall call -> true;
+            case Node.Do block -> any(block.expressions());
+            case Node.Object object -> any(object.values());
+            default -> false;
+        };
+    }
+
+    private static boolean any(Node[] nodes) {
+        for (Node node : nodes) {
+            if (calls(node)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evaluates the arguments of the call, in parallel unless the pool has
+     * surplus work.
+     */
+    static RuntimeValue[] arguments(Node.Parallel parallel, Scope scope) throws EvaluateException {
+        var arguments = parallel.call().arguments();
+        var internal = ForkJoinTask.getPool() == parallel.pool();
+        if (internal && ForkJoinTask.getSurplusQueuedTaskCount() > SURPLUS) {
+            return sequential(arguments, scope);
+        }
+        var parent = CURRENT.get();
+        var tasks = new Task[arguments.length];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new Task(arguments[i], scope, parent);
+        }
+        if (parent == null) {
+            ACTIVE.incrementAndGet();
+        }
+        try {
+            //forked last to first, so joining in order pops the next task
+            for (int i = tasks.length - 1; i > 0; i--) {
+                if (internal) {
+                    tasks[i].fork();
+                } else {
+                    parallel.pool().execute(tasks[i]);
+                }
+            }
+            tasks[0].compute();
+            var values = new RuntimeValue[tasks.length];
+            for (int i = 0; i < tasks.length; i++) {
+                if (i > 0 && !await(tasks[i], internal)) {
+                    cancel(tasks, i);
+                    Thread.currentThread().interrupt();
+                    throw new EvaluateException("Evaluation interrupted.");
+                }
+                var failure = tasks[i].failure;
+                if (failure != null) {
+                    cancel(tasks, i + 1);
+                    if (failure instanceof Impure && parent == null) {
+                        return sequential(arguments, scope);
+                    }
+                    if (failure instanceof EvaluateException e) {
+                        throw e;
+                    } else if (failure instanceof RuntimeException e) {
+                        throw e;
+                    }
+                    throw (Error) failure;
+                }
+                values[i] = tasks[i].value;
+            }
+            return values;
+        } finally {
+            if (parent == null) {
+                ACTIVE.decrementAndGet();
+            }
+        }
+    }
+
+    private static RuntimeValue[] sequential(Node[] arguments, Scope scope) throws EvaluateException {
+        var values = new RuntimeValue[arguments.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = arguments[i].evaluate(scope);
+        }
+        return values;
+    }
+
+    /**
+     * Waits for the task, returning false if interrupted (which is only
+     * possible for threads outside the pool).
+     */
+    private static boolean await(Task task, boolean internal) {
+        if (internal) {
+            task.quietlyJoin();
+            return true;
+        }
+        try {
+            task.get();
+            return true;
+        } catch (ExecutionException e) {
+            throw new AssertionError(e); //failures are recorded by compute
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Cancels the tasks from the index onwards and waits for them to stop,
+     * so they no longer read the scope once evaluation continues.
+     */
+    private static void cancel(Task[] tasks, int from) {
+        for (int i = from; i < tasks.length; i++) {
+            tasks[i].cancelled = true;
+        }
+        for (int i = from; i < tasks.length; i++) {
+            tasks[i].quietlyJoin();
+        }
+    }
+
+    /**
+     * Returns whether the argument being evaluated by this thread has been
+     * cancelled, which is a single read unless any are being evaluated.
+     */
+    static boolean cancelled() {
+        if (ACTIVE.get() == 0) {
+            return false;
+        }
+        var task = CURRENT.get();
+        return task != null && task.cancelled();
+    }
+
+    /**
+     * Throws Impure when evaluating a parallel argument, called by setters
+     * before mutating anything.
+     */
+    static void mutating() {
+        if (CURRENT.get() != null) {
+            throw Impure.INSTANCE;
+        }
+    }
+
+}
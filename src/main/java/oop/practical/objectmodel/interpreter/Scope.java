@@ -1,26 +1,205 @@
 package oop.practical.objectmodel.interpreter;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Optional;
 
+/**
+ * Scopes are either dictionary-backed (the default, for environments that
+ * grow arbitrarily), persistent (backed by a PersistentMap, used for the
+ * global scope) or shaped, storing values in a slot array laid out by a
+ * shared {@link Shape} (used for objects and function frames). Empty (null)
+ * slots are treated as undefined.
+ *
+ * Persistent and shaped scopes can be forked in O(1), see fork.
+ *
+ * Scopes may be shared between threads as follows (see Interpreter.context):
+ * dictionary scopes are frozen before they are shared, after which they
+ * are read only, and object scopes synchronize on themselves to define
+ * names. Defining a new name stores its slot, then the (possibly grown)
+ * slot array and then the shape with release semantics, and readers load
+ * the shape and then the slot array with acquire semantics, so a reader
+ * seeing a shape also sees the slots of every name in it. Frames are only
+ * defined in by the thread evaluating them, and so are never synchronized.
+ *
+ * Object scopes walked as an ancestor by an InlineCache hold a validity
+ * cell (see cell), which is invalidated after they gain a new key or have
+ * their prototype replaced.
+ *
+ * The mutation count of a scope (see mutations) is incremented atomically
+ * after each store, so a reader seeing a count also sees the stores counted
+ * by it. Frames, which are never printed, are not counted.
+ */
 public final class Scope {
 
+    private static final VarHandle MUTATIONS;
+    private static final VarHandle SHAPE;
+    private static final VarHandle SLOTS;
+    private static final VarHandle CELL;
+
+    static {
+        try {
+            var lookup = MethodHandles.lookup();
+            MUTATIONS = lookup.findVarHandle(Scope.class, "mutations", int.class);
+            SHAPE = lookup.findVarHandle(Scope.class, "shape", Shape.class);
+            SLOTS = lookup.findVarHandle(Scope.class, "slots", RuntimeValue[].class);
+            CELL = lookup.findVarHandle(Scope.class, "cell", InlineCache.Cell.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     private final Scope parent;
-    private final Map<String, RuntimeValue> variables = new LinkedHashMap<>();
+    private final boolean shared;
+    private final Map<String, RuntimeValue> variables;
+    private PersistentMap map;
+    private boolean frozen = false;
+    private Shape shape; //published through SHAPE, see class doc
+    private RuntimeValue[] slots; //published through SLOTS
+    private boolean copy = false;
+    private volatile int mutations = 0;
+    private volatile InlineCache.Cell cell;
+    private Printer.Rendering rendering;
 
     public Scope(Scope parent) {
         this.parent = parent;
+        this.shared = false;
+        this.variables = new LinkedHashMap<>();
+    }
+
+    Scope(Scope parent, int capacity) {
+        this.parent = parent;
+        this.shared = true;
+        this.variables = null;
+        this.shape = Shape.ROOT;
+        this.slots = new RuntimeValue[capacity];
+    }
+
+    Scope(Scope parent, Shape layout) {
+        this.parent = parent;
+        this.shared = false;
+        this.variables = null;
+        this.shape = layout;
+        this.slots = new RuntimeValue[layout.size()];
+    }
+
+    private Scope(Scope parent, boolean shared, PersistentMap map, Shape shape, RuntimeValue[] slots) {
+        this.parent = parent;
+        this.shared = shared;
+        this.variables = null;
+        this.map = map;
+        this.shape = shape;
+        this.slots = slots;
+        this.copy = slots != null;
+    }
+
+    /**
+     * Returns an empty persistent scope.
+     */
+    public static Scope persistent(Scope parent) {
+        return new Scope(parent, false, PersistentMap.EMPTY, null, null);
     }
 
     public void define(String name, RuntimeValue object) {
-        variables.put(name, object);
+        if (frozen) {
+            throw new IllegalStateException("Defined " + name + " in a frozen scope.");
+        } else if (variables != null) {
+            variables.put(name, object);
+            mutated();
+            HandleCompiler.redefined(name);
+        } else if (map != null) {
+            map = map.put(name, object);
+            mutated();
+            HandleCompiler.redefined(name);
+        } else if (shared) {
+            synchronized (this) {
+                defineSlot(name, object);
+            }
+        } else {
+            defineSlot(name, object);
+        }
+    }
+
+    private void defineSlot(String name, RuntimeValue object) {
+        var index = shape.indexOf(name);
+        if (index != -1) {
+            set(index, object);
+            return;
+        }
+        index = shape.size();
+        if (index == slots.length || copy) {
+            var slots = Arrays.copyOf(this.slots, index == this.slots.length ? Math.max(2 * this.slots.length, 4) : this.slots.length);
+            slots[index] = object;
+            SLOTS.setRelease(this, slots);
+            copy = false;
+        } else {
+            slots[index] = object;
+        }
+        SHAPE.setRelease(this, shape.with(name));
+        mutated();
+        if (shared) {
+            invalidate();
+        }
+    }
+
+    private void mutated() {
+        if (shared || shape == null) {
+            MUTATIONS.getAndAdd(this, 1);
+        }
+    }
+
+    /**
+     * Makes this (dictionary or persistent) scope read only so it can be
+     * shared between threads, returning this scope.
+     */
+    Scope freeze() {
+        if (shape != null) {
+            throw new IllegalStateException("Shaped scopes cannot be frozen.");
+        }
+        frozen = true;
+        return this;
+    }
+
+    /**
+     * Returns a scope with the same parent and values as this one, after
+     * which defining in either does not affect the other. This is O(1) for
+     * persistent scopes, which share their map, and shaped scopes, which
+     * share their slots until either defines a value (copy on write), while
+     * dictionary scopes are copied.
+     */
+    public Scope fork() {
+        if (variables != null) {
+            var fork = new Scope(parent);
+            fork.variables.putAll(variables);
+            return fork;
+        } else if (map != null) {
+            return new Scope(parent, false, map, null, null);
+        } else if (shared) {
+            synchronized (this) {
+                copy = true;
+                return new Scope(parent, true, null, shape, slots);
+            }
+        } else {
+            copy = true;
+            return new Scope(parent, false, null, shape, slots);
+        }
     }
 
     public Optional<RuntimeValue> resolve(String name, boolean current) {
         // Implemented in M3L5.5 recording
-        if (variables.containsKey(name)) {
-            return Optional.of(variables.get(name));
+        RuntimeValue value;
+        var shape = shape();
+        if (shape != null) {
+            var index = shape.indexOf(name);
+            value = index != -1 ? get(index) : null;
+        } else {
+            value = map != null ? map.get(name) : variables.get(name);
+        }
+        if (value != null) {
+            return Optional.of(value);
         } else if (parent != null && !current) {
             return parent.resolve(name, current);
         } else {
@@ -28,14 +207,120 @@ public final class Scope {
         }
     }
 
+    /**
+     * Returns the variables defined in this scope, or (if not current) this
+     * scope and its ancestors, with those of descendants taking precedence.
+     */
     public Map<String, RuntimeValue> collect(boolean current) {
-        if (current || parent == null) {
-            return new LinkedHashMap<>(variables);
-        } else {
-            var map = parent.collect(false);
+        var map = new LinkedHashMap<String, RuntimeValue>();
+        collect(current, map);
+        return map;
+    }
+
+    private void collect(boolean current, Map<String, RuntimeValue> map) {
+        if (!current && parent != null) {
+            parent.collect(false, map);
+        }
+        if (variables != null) {
             map.putAll(variables);
-            return map;
+        } else if (this.map != null) {
+            for (var entry : this.map.entries()) {
+                map.put(entry.key(), entry.value());
+            }
+        } else {
+            var shape = shape();
+            for (int i = 0; i < shape.size(); i++) {
+                var value = get(i);
+                if (value != null) {
+                    map.put(shape.key(i), value);
+                }
+            }
+        }
+    }
+
+    Scope parent() {
+        return parent;
+    }
+
+    /**
+     * Returns whether this is an object scope (rather than a frame or a
+     * dictionary scope), which may be defined in by any thread.
+     */
+    boolean shared() {
+        return shared;
+    }
+
+    boolean persistent() {
+        return map != null;
+    }
+
+    /**
+     * Returns the shape of a shaped scope, or null for dictionary and
+     * persistent scopes.
+     */
+    Shape shape() {
+        return (Shape) SHAPE.getAcquire(this);
+    }
+
+    /**
+     * Returns the validity cell of this object scope, which is invalidated
+     * when it next gains a key or has its prototype replaced, see
+     * InlineCache.
+     */
+    InlineCache.Cell cell() {
+        var cell = this.cell;
+        if (cell == null) {
+            var created = new InlineCache.Cell();
+            cell = (InlineCache.Cell) CELL.compareAndExchange(this, null, created);
+            cell = cell != null ? cell : created;
+        }
+        return cell;
+    }
+
+    /**
+     * Invalidates the validity cell, if any, which must be called after
+     * the change is stored. The exchange orders it with the shape read by
+     * a concurrent lookup taking the cell.
+     */
+    void invalidate() {
+        var cell = (InlineCache.Cell) CELL.getAndSet(this, null);
+        if (cell != null) {
+            cell.invalidate();
+        }
+    }
+
+    /**
+     * Returns the number of times a slot has been defined or assigned,
+     * which invalidates any cached rendering (see Printer).
+     */
+    int mutations() {
+        return mutations;
+    }
+
+    Printer.Rendering rendering() {
+        return rendering;
+    }
+
+    void rendering(Printer.Rendering rendering) {
+        this.rendering = rendering;
+    }
+
+    /**
+     * Returns the value of the slot, or null if it is undefined (including
+     * beyond the slots, which a shape read concurrently may refer to).
+     */
+    RuntimeValue get(int index) {
+        var slots = (RuntimeValue[]) SLOTS.getAcquire(this);
+        return index < slots.length ? slots[index] : null;
+    }
+
+    void set(int index, RuntimeValue value) {
+        if (copy) {
+            SLOTS.setRelease(this, slots.clone());
+            copy = false;
         }
+        slots[index] = value;
+        mutated();
     }
 
 }
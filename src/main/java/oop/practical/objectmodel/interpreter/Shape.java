@@ -0,0 +1,133 @@
+package oop.practical.objectmodel.interpreter;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable layout descriptor (hidden class) for shaped scopes. A shape
+ * maps each key to a slot index in definition order; adding a key follows a
+ * transition to a child shape, so scopes defining the same keys in the same
+ * order share one shape and only store their values in a slot array.
+ *
+ * Transitions are weak, so shapes no longer used by any scope, node or
+ * inline cache are collected (and created again if needed) rather than
+ * accumulating for every sequence of keys ever defined.
+ *
+ * The first child of a shape shares its keys array and index, appending its
+ * key in place, so a chain of n transitions is built in O(n). Entries at or
+ * past a shape's size belong to its descendants and are ignored by it. Any
+ * other child copies the keys up to its parent's size. Small shapes are
+ * searched linearly and have no index.
+ */
+final class Shape {
+
+    static final Shape ROOT = new Shape(new String[0], 0, null);
+
+    private static final int LINEAR = 8;
+    private static final ReferenceQueue<Shape> COLLECTED = new ReferenceQueue<>();
+
+    private final String[] keys;
+    private final int size;
+    private final Map<String, Integer> indices;
+    private final Map<String, Transition> transitions = new ConcurrentHashMap<>();
+    private boolean extended = false;
+
+    private static final class Transition extends WeakReference<Shape> {
+
+        private final Shape parent;
+        private final String key;
+
+        private Transition(Shape parent, String key, Shape child) {
+            super(child, COLLECTED);
+            this.parent = parent;
+            this.key = key;
+        }
+
+    }
+
+    private Shape(String[] keys, int size, Map<String, Integer> indices) {
+        this.keys = keys;
+        this.size = size;
+        this.indices = indices;
+    }
+
+    int size() {
+        return size;
+    }
+
+    String key(int index) {
+        return keys[index];
+    }
+
+    int indexOf(String key) {
+        if (indices == null) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (keys[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        var index = indices.get(key);
+        return index != null && index < size ? index : -1;
+    }
+
+    Shape with(String key) {
+        expunge();
+        var shape = child(key);
+        if (shape != null) {
+            return shape;
+        }
+        synchronized (this) {
+            shape = child(key);
+            if (shape == null) {
+                shape = extend(key);
+                transitions.put(key, new Transition(this, key, shape));
+            }
+            return shape;
+        }
+    }
+
+    private Shape child(String key) {
+        var transition = transitions.get(key);
+        return transition != null ? transition.get() : null;
+    }
+
+    /**
+     * Returns a new child shape with the key, sharing this shape's keys and
+     * index if it is the first.
+     */
+    private Shape extend(String key) {
+        var shared = !extended;
+        extended = true;
+        var keys = shared && size < this.keys.length ? this.keys : Arrays.copyOf(this.keys, Math.max(2 * size, 4));
+        keys[size] = key;
+        Map<String, Integer> indices = null;
+        if (size + 1 > LINEAR) {
+            if (shared && this.indices != null) {
+                indices = this.indices;
+            } else {
+                indices = new ConcurrentHashMap<>();
+                for (int i = 0; i < size; i++) {
+                    indices.put(keys[i], i);
+                }
+            }
+            indices.put(key, size);
+        }
+        return new Shape(keys, size + 1, indices);
+    }
+
+    /**
+     * Removes the transitions to shapes that have been collected.
+     */
+    private static void expunge() {
+        for (var reference = COLLECTED.poll(); reference != null; reference = COLLECTED.poll()) {
+            var transition = (Transition) reference;
+            transition.parent.transitions.remove(transition.key, transition);
+        }
+    }
+
+}
@@ -2,24 +2,100 @@ package oop.practical.objectmodel.lisp;
 
 import java.math.BigDecimal;
 import java.util.List;
+import java.util.Objects;
 
+/**
+ * Each ast carries the position of its first token (see Position), which
+ * is NONE when constructed without one. Positions are not part of equality,
+ * so parsed asts equal those constructed directly.
+ */
 public sealed interface Ast {
 
+    int position();
+
     record Number(
-        BigDecimal value
-    ) implements Ast {}
+        BigDecimal value,
+        int position
+    ) implements Ast {
+
+        public Number(BigDecimal value) {
+            this(value, Position.NONE);
+        }
+
+        @Override
+        public boolean equals(java.lang.Object object) {
+            return object instanceof Number number && value.equals(number.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return value.hashCode();
+        }
+
+    }
 
     record Atom(
-        java.lang.String name
-    ) implements Ast {}
+        java.lang.String name,
+        int position
+    ) implements Ast {
+
+        public Atom(java.lang.String name) {
+            this(name, Position.NONE);
+        }
+
+        @Override
+        public boolean equals(java.lang.Object object) {
+            return object instanceof Atom atom && name.equals(atom.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+
+    }
 
     record Variable(
-        java.lang.String name
-    ) implements Ast {}
+        java.lang.String name,
+        int position
+    ) implements Ast {
+
+        public Variable(java.lang.String name) {
+            this(name, Position.NONE);
+        }
+
+        @Override
+        public boolean equals(java.lang.Object object) {
+            return object instanceof Variable variable && name.equals(variable.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+
+    }
 
     record Function(
         java.lang.String name,
-        List<Ast> arguments
-    ) implements Ast {}
+        List<Ast> arguments,
+        int position
+    ) implements Ast {
+
+        public Function(java.lang.String name, List<Ast> arguments) {
+            this(name, arguments, Position.NONE);
+        }
+
+        @Override
+        public boolean equals(java.lang.Object object) {
+            return object instanceof Function function && name.equals(function.name) && arguments.equals(function.arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, arguments);
+        }
+
+    }
 
 }
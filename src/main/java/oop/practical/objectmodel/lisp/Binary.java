@@ -0,0 +1,341 @@
+package oop.practical.objectmodel.lisp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * Compact binary encoding of an ast (see Lisp.write and Lisp.load), so
+ * libraries are loaded without lexing or parsing them again.
+ *
+ * Names are written once to a string table and referenced by index, and
+ * all integers are varints (zigzag encoded when signed), so most asts take
+ * a few bytes. Functions are written with the length of their arguments,
+ * which are loaded lazily: the arguments of a function are only decoded
+ * when first accessed, directly from the memory-mapped file. Positions are
+ * preserved, and names loaded from the same file are the same instances,
+ * as they are when parsed.
+ *
+ * The header and string table are validated when loading, but a corrupt
+ * ast is only detected (as a RuntimeException) once its function's
+ * arguments are accessed.
+ */
+final class Binary {
+
+    private static final int MAGIC = 0x4F4D4153; //OMAS
+    private static final int VERSION = 1;
+
+    private static final byte NUMBER = 0;
+    private static final byte DECIMAL = 1;
+    private static final byte ATOM = 2;
+    private static final byte VARIABLE = 3;
+    private static final byte FUNCTION = 4;
+
+    private Binary() {}
+
+    static void write(Ast ast, Path path) throws IOException {
+        var writer = new Writer();
+        var nodes = writer.encode(ast);
+        var header = new ByteArrayOutputStream();
+        varint(writer.strings.size(), header);
+        for (String string : writer.strings) {
+            var bytes = string.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length, header);
+            header.write(bytes);
+        }
+        varint(nodes.length, header);
+        try (var output = new DataOutputStream(Files.newOutputStream(path))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            header.writeTo(output);
+            output.write(nodes);
+        }
+    }
+
+    static Ast read(Path path) throws IOException {
+        ByteBuffer buffer;
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Invalid ast file " + path + ".");
+            }
+            var reader = new Reader(buffer, null, buffer.position());
+            var strings = new String[(int) reader.varint()];
+            for (int i = 0; i < strings.length; i++) {
+                var bytes = new byte[(int) reader.varint()];
+                buffer.get(reader.index, bytes);
+                reader.index += bytes.length;
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            var length = reader.varint();
+            if (length != buffer.limit() - reader.index) {
+                throw new IOException("Invalid ast file " + path + ".");
+            }
+            return new Reader(buffer, strings, reader.index).node();
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid ast file " + path + ".", e);
+        }
+    }
+
+    /**
+     * Writes asts in two passes: size assigns string ids and computes the
+     * length of each function's arguments, recorded in the order node then
+     * writes them, so each byte is written once into an array of the exact
+     * length.
+     */
+    private static final class Writer {
+
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private int[] lengths = new int[16];
+        private int functions = 0;
+        private int next = 0;
+        private byte[] bytes;
+        private int index = 0;
+
+        private byte[] encode(Ast ast) {
+            bytes = new byte[size(ast)];
+            node(ast);
+            return bytes;
+        }
+
+        /**
+         * Returns the length of the ast's encoding.
+         */
+        private int size(Ast ast) {
+            var position = varsize(Integer.toUnsignedLong(ast.position()));
+            return switch (ast) {
+                case Ast.Number number -> {
+                    var unscaled = number.value().unscaledValue();
+                    var scale = varsize(zigzag(number.value().scale()));
+                    if (unscaled.bitLength() < Long.SIZE) {
+                        yield 1 + position + scale + varsize(zigzag(unscaled.longValue()));
+                    }
+                    var bytes = unscaled.bitLength() / 8 + 1; //see BigInteger.toByteArray
+                    yield 1 + position + scale + varsize(bytes) + bytes;
+                }
+                case Ast.Atom atom -> 1 + position + varsize(string(atom.name()));
+                case Ast.Variable variable -> 1 + position + varsize(string(variable.name()));
+                case Ast.Function function -> {
+                    var slot = functions++;
+                    if (slot == lengths.length) {
+                        lengths = Arrays.copyOf(lengths, 2 * slot);
+                    }
+                    var name = varsize(string(function.name()));
+                    var length = 0;
+                    for (Ast argument : function.arguments()) {
+                        length = Math.addExact(length, size(argument));
+                    }
+                    lengths[slot] = length;
+                    yield Math.addExact(1 + position + name + varsize(function.arguments().size()) + varsize(length), length);
+                }
+            };
+        }
+
+        /**
+         * Writes the ast, which must have been sized first.
+         */
+        private void node(Ast ast) {
+            switch (ast) {
+                case Ast.Number number -> {
+                    var unscaled = number.value().unscaledValue();
+                    if (unscaled.bitLength() < Long.SIZE) {
+                        write(NUMBER);
+                        varint(Integer.toUnsignedLong(ast.position()));
+                        varint(zigzag(number.value().scale()));
+                        varint(zigzag(unscaled.longValue()));
+                    } else {
+                        var bytes = unscaled.toByteArray();
+                        write(DECIMAL);
+                        varint(Integer.toUnsignedLong(ast.position()));
+                        varint(zigzag(number.value().scale()));
+                        varint(bytes.length);
+                        System.arraycopy(bytes, 0, this.bytes, index, bytes.length);
+                        index += bytes.length;
+                    }
+                }
+                case Ast.Atom atom -> {
+                    write(ATOM);
+                    varint(Integer.toUnsignedLong(ast.position()));
+                    varint(string(atom.name()));
+                }
+                case Ast.Variable variable -> {
+                    write(VARIABLE);
+                    varint(Integer.toUnsignedLong(ast.position()));
+                    varint(string(variable.name()));
+                }
+                case Ast.Function function -> {
+                    write(FUNCTION);
+                    varint(Integer.toUnsignedLong(ast.position()));
+                    varint(string(function.name()));
+                    varint(function.arguments().size());
+                    varint(lengths[next++]);
+                    for (Ast argument : function.arguments()) {
+                        node(argument);
+                    }
+                }
+            }
+        }
+
+        private void write(byte b) {
+            bytes[index++] = b;
+        }
+
+        private void varint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((byte) (value & 0x7F | 0x80));
+                value >>>= 7;
+            }
+            write((byte) value);
+        }
+
+        private int string(String string) {
+            return ids.computeIfAbsent(string, s -> {
+                strings.add(s);
+                return strings.size() - 1;
+            });
+        }
+
+    }
+
+    /**
+     * Decodes asts from the buffer, reading by absolute index so that
+     * readers at different positions can share the buffer across threads.
+     */
+    private static final class Reader {
+
+        private final ByteBuffer buffer;
+        private final String[] strings;
+        private int index;
+
+        private Reader(ByteBuffer buffer, String[] strings, int index) {
+            this.buffer = buffer;
+            this.strings = strings;
+            this.index = index;
+        }
+
+        private Ast node() {
+            var tag = buffer.get(index++);
+            var position = (int) varint();
+            return switch (tag) {
+                case NUMBER -> {
+                    var scale = (int) unzigzag(varint());
+                    yield new Ast.Number(BigDecimal.valueOf(unzigzag(varint()), scale), position);
+                }
+                case DECIMAL -> {
+                    var scale = (int) unzigzag(varint());
+                    var bytes = new byte[(int) varint()];
+                    buffer.get(index, bytes);
+                    index += bytes.length;
+                    yield new Ast.Number(new BigDecimal(new BigInteger(bytes), scale), position);
+                }
+                case ATOM -> new Ast.Atom(strings[(int) varint()], position);
+                case VARIABLE -> new Ast.Variable(strings[(int) varint()], position);
+                case FUNCTION -> {
+                    var name = strings[(int) varint()];
+                    var size = (int) varint();
+                    var length = (int) varint();
+                    var arguments = new Arguments(this, index, size);
+                    index += length;
+                    yield new Ast.Function(name, arguments, position);
+                }
+                default -> throw new IllegalStateException("Invalid ast tag " + tag + ".");
+            };
+        }
+
+        private long varint() {
+            var first = buffer.get(index++);
+            if (first >= 0) {
+                return first; //most varints are a single byte
+            }
+            var value = first & 0x7FL;
+            for (int shift = 7; ; shift += 7) {
+                var b = buffer.get(index++);
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * The arguments of a loaded function, decoded on first access. Racing
+     * threads may each decode them, but the asts are equal and only one
+     * array is kept.
+     */
+    private static final class Arguments extends AbstractList<Ast> implements RandomAccess {
+
+        private final Reader reader;
+        private final int offset;
+        private final int size;
+        private volatile Ast[] arguments;
+
+        private Arguments(Reader reader, int offset, int size) {
+            this.reader = reader;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public Ast get(int index) {
+            Objects.checkIndex(index, size);
+            var arguments = this.arguments;
+            if (arguments == null) {
+                var reader = new Reader(this.reader.buffer, this.reader.strings, offset);
+                arguments = new Ast[size];
+                for (int i = 0; i < size; i++) {
+                    arguments[i] = reader.node();
+                }
+                this.arguments = arguments;
+            }
+            return arguments[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+    }
+
+    private static void varint(long value, ByteArrayOutputStream output) {
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+    private static int varsize(long value) {
+        return Math.max(1, (Long.SIZE - Long.numberOfLeadingZeros(value) + 6) / 7);
+    }
+
+    private static long zigzag(long value) {
+        return value << 1 ^ value >> 63;
+    }
+
+    private static long unzigzag(long value) {
+        return value >>> 1 ^ -(value & 1);
+    }
+
+}
@@ -1,108 +1,312 @@
 package oop.practical.objectmodel.lisp;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
 
+/**
+ * Characters are classified with a precomputed ASCII table of class bits,
+ * so lexing performs no per-character allocation. Non-ASCII characters
+ * belong to no class and are lexed as operators.
+ *
+ * Input is either a CharSequence, which is lexed in place, or a Reader,
+ * which is read incrementally into a buffer that only retains the token
+ * being lexed (see next). IOExceptions from the reader are rethrown as
+ * UncheckedIOException.
+ *
+ * Tokens are packed longs (see Token.pack) referencing the input or buffer,
+ * so the values of a token must be read (with number/name) before lexing
+ * the next one, which may reuse the buffer when streaming. Names are interned, so
+ * each distinct identifier is only allocated once per lexer.
+ *
+ * Lines are counted as newlines are skipped with whitespace (tokens never
+ * contain one), so the position of a token (see Position) is computed
+ * from its start when read, like its values.
+ */
 final class Lexer {
 
+    private static final byte WHITESPACE = 1; // [ \n\r]
+    private static final byte DIGIT = 2; // [0-9]
+    private static final byte SIGN = 4; // [+\-]
+    private static final byte IDENTIFIER = 8; // [A-Za-z0-9_+\-*/<>=.:!?]
+    private static final byte[] CLASSES = new byte[128];
+
+    static {
+        for (char c : " \n\r".toCharArray()) {
+            CLASSES[c] |= WHITESPACE;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            CLASSES[c] |= DIGIT;
+        }
+        for (char c : "+-".toCharArray()) {
+            CLASSES[c] |= SIGN;
+        }
+        for (char c : "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789_+-*/<>=.:!?".toCharArray()) {
+            CLASSES[c] |= IDENTIFIER;
+        }
+    }
+
+    static final long END = -1;
+
     private final CharStream chars;
+    private final Names names = new Names();
+    private int line = 1;
+    private int lineStart = 0;
+
+    Lexer(CharSequence input) {
+        chars = new CharStream(input);
+    }
 
-    Lexer(String input) {
+    Lexer(Reader input) {
         chars = new CharStream(input);
     }
 
-    List<Token> lex() {
-        var tokens = new ArrayList<Token>();
+    /**
+     * Returns all tokens of the input, which must not be streamed since
+     * tokens are only valid until the next is lexed otherwise.
+     */
+    long[] lex() {
+        var tokens = new long[64];
+        var size = 0;
+        for (long token; (token = next()) != END; ) {
+            if (size == tokens.length) {
+                tokens = Arrays.copyOf(tokens, 2 * size);
+            }
+            tokens[size++] = token;
+        }
+        return Arrays.copyOf(tokens, size);
+    }
+
+    /**
+     * Returns the next token, or END at the end of input.
+     */
+    long next() {
         while (chars.has(0)) {
-            while (match("[ \n\r\r]")) {}
-            chars.emit(Token.Type.OPERATOR);
-            if (peek("[0-9]") || peek("[+\\-]", "[0-9]")) {
-                tokens.add(lexNumber());
-            } else if (peek("[A-Za-z0-9_+\\-*/<>=.:!?]")) {
-                tokens.add(lexIdentifier());
+            while (peek(WHITESPACE)) {
+                if (chars.get(0) == '\n') {
+                    line++;
+                    lineStart = chars.offset(1);
+                }
+                chars.advance(1);
+            }
+            chars.skip();
+            if (peek(DIGIT) || peek(SIGN) && peek(1, DIGIT)) {
+                return lexNumber();
+            } else if (peek(IDENTIFIER)) {
+                return lexIdentifier();
             } else if (chars.has(0)) {
-                tokens.add(lexOperator());
+                return lexOperator();
             }
         }
-        return tokens;
+        return END;
+    }
+
+    char charAt(long token, int offset) {
+        return chars.at(Token.start(token) + offset);
     }
 
-    private Token lexNumber() {
-        match("[+\\-]");
-        while (match("[0-9]")) {}
-        if (match('.', "[0-9]")) {
-            while (match("[0-9]")) {}
+    BigDecimal number(long token) {
+        var start = Token.start(token);
+        var length = Token.length(token);
+        return chars.input == null
+            ? new BigDecimal(chars.buffer, start, length)
+            : new BigDecimal(chars.copy(start, length), 0, length);
+    }
+
+    /**
+     * Returns the interned value of the token, skipping the first skip
+     * characters (such as the : of an atom).
+     */
+    String name(long token, int skip) {
+        return names.intern(chars, Token.start(token) + skip, Token.length(token) - skip);
+    }
+
+    /**
+     * Returns the position of the token, or of the end of the input lexed
+     * so far for END.
+     */
+    int position(long token) {
+        var offset = token == END ? chars.offset(0) : chars.discarded + Token.start(token);
+        return Position.pack(line, offset - lineStart + 1);
+    }
+
+    Token token(long token) {
+        return new Token(Token.type(token), chars.string(Token.start(token), Token.length(token)));
+    }
+
+    private long lexNumber() {
+        match(SIGN);
+        while (match(DIGIT)) {}
+        if (peek('.') && peek(1, DIGIT)) {
+            chars.advance(2);
+            while (match(DIGIT)) {}
         }
-        if (match("e")) {
-            match("[+\\-]");
-            while (match("[0-9]")) {}
+        if (peek('e')) {
+            chars.advance(1);
+            match(SIGN);
+            while (match(DIGIT)) {}
         }
         return chars.emit(Token.Type.NUMBER);
     }
 
-    private Token lexIdentifier() {
-        while (match("[A-Za-z0-9_+\\-*/<>=.:!?]")) {}
+    private long lexIdentifier() {
+        while (match(IDENTIFIER)) {}
         return chars.emit(Token.Type.IDENTIFIER);
     }
 
-    private Token lexOperator() {
+    private long lexOperator() {
         chars.advance(1);
         return chars.emit(Token.Type.OPERATOR);
     }
 
-    private boolean peek(Object... objects) {
-        for (var i = 0; i < objects.length; i++) {
-            if (!chars.has(i) || !test(objects[i], chars.get(i))) {
-                return false;
-            }
+    private boolean peek(byte type) {
+        return peek(0, type);
+    }
+
+    private boolean peek(int offset, byte type) {
+        if (!chars.has(offset)) {
+            return false;
         }
-        return true;
+        var character = chars.get(offset);
+        return character < 128 && (CLASSES[character] & type) != 0;
+    }
+
+    private boolean peek(char character) {
+        return chars.has(0) && chars.get(0) == character;
     }
 
-    private boolean match(Object... objects) {
-        var peek = peek(objects);
+    private boolean match(byte type) {
+        var peek = peek(type);
         if (peek) {
-            chars.advance(objects.length);
+            chars.advance(1);
         }
         return peek;
     }
 
-    private static boolean test(Object object, char character) {
-        return switch (object) {
-            case Character c -> character == c;
-            case String regex -> Character.toString(character).matches(regex);
-            case List<?> options -> options.stream().anyMatch(o -> test(o, character));
-            default -> throw new AssertionError(object);
-        };
-    }
-
+    /**
+     * Characters of the input, indexed directly if it is a CharSequence or
+     * through a buffer read from the reader otherwise.
+     */
     private static final class CharStream {
 
-        private final String input;
+        private final CharSequence input;
+        private final Reader reader;
+        private char[] buffer;
+        private int limit;
+        private boolean end;
         private int index = 0;
         private int length = 0;
+        private int discarded = 0;
 
-        private CharStream(String input) {
+        private CharStream(CharSequence input) {
             this.input = input;
+            this.reader = null;
+            this.buffer = new char[0]; //scratch for copy
+            this.limit = input.length();
+            this.end = true;
+        }
+
+        private CharStream(Reader reader) {
+            this.input = null;
+            this.reader = reader;
+            this.buffer = new char[8192];
+            this.limit = 0;
+            this.end = false;
+        }
+
+        private char at(int index) {
+            return input != null ? input.charAt(index) : buffer[index];
+        }
+
+        private String string(int start, int length) {
+            return input != null ? input.subSequence(start, start + length).toString() : new String(buffer, start, length);
+        }
+
+        /**
+         * Returns the characters of the input (not streamed) from start in a
+         * scratch array, which is reused by the next copy.
+         */
+        private char[] copy(int start, int length) {
+            if (buffer.length < length) {
+                buffer = new char[Math.max(length, 32)];
+            }
+            if (input instanceof String string) {
+                string.getChars(start, start + length, buffer, 0);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    buffer[i] = input.charAt(start + i);
+                }
+            }
+            return buffer;
         }
 
         public boolean has(int offset) {
-            return index + length + offset < input.length();
+            while (index + length + offset >= limit && !end) {
+                if (!fill()) {
+                    return false;
+                }
+            }
+            return index + length + offset < limit;
         }
 
         public char get(int offset) {
             if (!has(offset)) {
                 throw new IllegalArgumentException("Broken lexer invariant.");
             }
-            return input.charAt(index + length + offset);
+            return at(index + length + offset);
+        }
+
+        /**
+         * Reads more input, first discarding characters before the current
+         * token (and growing the buffer if the token fills it). Returns
+         * false at the end of input.
+         */
+        private boolean fill() {
+            if (index > 0) {
+                System.arraycopy(buffer, index, buffer, 0, limit - index);
+                limit -= index;
+                discarded += index;
+                index = 0;
+            } else if (limit == buffer.length) {
+                buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+            }
+            try {
+                var read = reader.read(buffer, limit, buffer.length - limit);
+                if (read == -1) {
+                    end = true;
+                    return false;
+                }
+                limit += read;
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Returns the offset in the input of the character at the offset
+         * from the current one.
+         */
+        public int offset(int offset) {
+            return discarded + index + length + offset;
         }
 
         public void advance(int chars) {
             length += chars;
         }
 
-        public Token emit(Token.Type type) {
-            var token = new Token(type, input.substring(index, index + length));
+        /**
+         * Discards the current characters without creating a token.
+         */
+        public void skip() {
+            index += length;
+            length = 0;
+        }
+
+        public long emit(Token.Type type) {
+            var token = Token.pack(type, index, length);
             index += length;
             length = 0;
             return token;
@@ -110,4 +314,64 @@ final class Lexer {
 
     }
 
+    /**
+     * Open addressing set of names, looked up directly from the input so a
+     * String is only created the first time a name is seen.
+     */
+    private static final class Names {
+
+        private String[] table = new String[64];
+        private int size = 0;
+
+        String intern(CharStream chars, int start, int length) {
+            var hash = 0;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + chars.at(start + i);
+            }
+            var mask = table.length - 1;
+            for (int i = (hash ^ hash >>> 16) & mask; ; i = (i + 1) & mask) {
+                var name = table[i];
+                if (name == null) {
+                    name = chars.string(start, length);
+                    table[i] = name;
+                    if (2 * ++size > table.length) {
+                        resize();
+                    }
+                    return name;
+                } else if (name.hashCode() == hash && equals(name, chars, start, length)) {
+                    return name;
+                }
+            }
+        }
+
+        private static boolean equals(String name, CharStream chars, int start, int length) {
+            if (name.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (name.charAt(i) != chars.at(start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void resize() {
+            var old = table;
+            table = new String[2 * old.length];
+            var mask = table.length - 1;
+            for (String name : old) {
+                if (name != null) {
+                    var hash = name.hashCode();
+                    var i = (hash ^ hash >>> 16) & mask;
+                    while (table[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    table[i] = name;
+                }
+            }
+        }
+
+    }
+
 }
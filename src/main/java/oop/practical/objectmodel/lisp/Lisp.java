@@ -1,9 +1,211 @@
 package oop.practical.objectmodel.lisp;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
 public final class Lisp {
 
-    public static Ast parse(String input) throws ParseException {
-        return new Parser(new Lexer(input).lex()).parse();
+    public static Ast parse(CharSequence input) throws ParseException {
+        return new Parser(new Lexer(input)).parse();
+    }
+
+    /**
+     * Writes the ast to the path in a compact binary format (see Binary),
+     * which is loaded much faster than it is parsed.
+     */
+    public static void write(Ast ast, Path path) throws IOException {
+        Binary.write(ast, path);
+    }
+
+    /**
+     * Loads an ast written by write, memory-mapping the file and decoding
+     * the arguments of functions as they are accessed.
+     */
+    public static Ast load(Path path) throws IOException {
+        return Binary.read(path);
+    }
+
+    /**
+     * Returns a cache of parsed asts holding at most maximumSize inputs.
+     */
+    public static Cache cache(int maximumSize) {
+        return new Cache(maximumSize);
+    }
+
+    /**
+     * Returns the top-level forms of the input, which are lexed and parsed
+     * one at a time as they are read.
+     */
+    public static Forms forms(Reader input) {
+        return new Forms(input);
+    }
+
+    /**
+     * Reads through an InputStream, as a Reader from Channels.newReader
+     * blocks on selectable channels (such as sockets) until its buffer is
+     * full rather than returning the input available so far.
+     */
+    public static Forms forms(ReadableByteChannel input) {
+        return forms(new InputStreamReader(Channels.newInputStream(input), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Stream of top-level forms. Memory is bounded by the size of a single
+     * form (plus the reader's buffer), so inputs of any length can be
+     * evaluated form by form.
+     */
+    public static final class Forms implements Closeable {
+
+        private final Reader input;
+        private final Parser parser;
+
+        private Forms(Reader input) {
+            this.input = input;
+            this.parser = new Parser(new Lexer(input));
+        }
+
+        /**
+         * Returns the next form, or null at the end of input. After a
+         * ParseException the offending token is skipped, so parsing can
+         * continue with the forms that follow.
+         */
+        public Ast next() throws ParseException, IOException {
+            try {
+                if (parser.done()) {
+                    return null;
+                }
+                return parser.parse();
+            } catch (ParseException e) {
+                parser.skip();
+                throw e;
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+
+    }
+
+    /**
+     * Bounded concurrent cache of parsed asts, keyed by their input, for
+     * services evaluating the same scripts repeatedly. Inputs are spread by
+     * hash over segments (of at least 64 inputs), each evicting its least
+     * recently used input once full, so lookups only contend within a
+     * segment. Inputs are parsed outside the lock and the first ast cached
+     * wins, so concurrent misses on the same input may each parse it.
+     * Inputs that fail to parse are not cached.
+     *
+     * Cached asts are shared by every caller and must not be modified. As
+     * the same ast is returned for each hit, an interpreter can also reuse
+     * the nodes compiled for it (see Interpreter.cached).
+     */
+    public static final class Cache {
+
+        private static final int SEGMENTS = 16;
+        private static final int SEGMENT_SIZE = 64;
+
+        private final Segment[] segments;
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        private final class Segment extends LinkedHashMap<String, Ast> {
+
+            private final int capacity;
+
+            private Segment(int capacity) {
+                super(16, 0.75f, true);
+                this.capacity = capacity;
+            }
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Ast> eldest) {
+                if (size() > capacity) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+
+        }
+
+        private Cache(int maximumSize) {
+            if (maximumSize <= 0) {
+                throw new IllegalArgumentException("Expected a positive maximum size, received " + maximumSize + ".");
+            }
+            //small caches are a single segment, so eviction is exactly LRU
+            segments = new Segment[Math.clamp(Integer.highestOneBit(maximumSize / SEGMENT_SIZE), 1, SEGMENTS)];
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = new Segment(maximumSize / segments.length + (i < maximumSize % segments.length ? 1 : 0));
+            }
+        }
+
+        public Ast parse(String input) throws ParseException {
+            var segment = segment(input);
+            synchronized (segment) {
+                var ast = segment.get(input);
+                if (ast != null) {
+                    hits.increment();
+                    return ast;
+                }
+            }
+            misses.increment();
+            var ast = Lisp.parse(input);
+            synchronized (segment) {
+                var cached = segment.putIfAbsent(input, ast);
+                return cached != null ? cached : ast;
+            }
+        }
+
+        private Segment segment(String input) {
+            var hash = input.hashCode();
+            return segments[(hash ^ hash >>> 16) & segments.length - 1];
+        }
+
+        public long hits() {
+            return hits.sum();
+        }
+
+        public long misses() {
+            return misses.sum();
+        }
+
+        public long evictions() {
+            return evictions.sum();
+        }
+
+        public int size() {
+            var size = 0;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    size += segment.size();
+                }
+            }
+            return size;
+        }
+
+        public void clear() {
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    segment.clear();
+                }
+            }
+        }
+
     }
 
 }
@@ -2,8 +2,22 @@ package oop.practical.objectmodel.lisp;
 
 public final class ParseException extends Exception {
 
+    private final int position;
+
     public ParseException(String message) {
+        this(message, Position.NONE);
+    }
+
+    public ParseException(String message, int position) {
         super(message);
+        this.position = position;
+    }
+
+    /**
+     * Returns the position of the offending token, see Position.
+     */
+    public int getPosition() {
+        return position;
     }
 
 }
@@ -1,88 +1,116 @@
 package oop.practical.objectmodel.lisp;
 
-import java.math.BigDecimal;
 import java.util.ArrayList;
-import java.util.List;
 
+/**
+ * Parses tokens as they are lexed. Token values are read from the lexer
+ * while the token is current (before advancing), so only one token of
+ * lookahead is ever retained.
+ */
 final class Parser {
 
+    private final Lexer lexer;
     private final TokenStream tokens;
 
-    Parser(List<Token> tokens) {
-        this.tokens = new TokenStream(tokens);
+    Parser(Lexer lexer) {
+        this.lexer = lexer;
+        this.tokens = new TokenStream(lexer);
+    }
+
+    boolean done() {
+        return !tokens.has();
+    }
+
+    /**
+     * Skips the current token (if any), used to make progress after a
+     * ParseException when parsing subsequent forms.
+     */
+    void skip() {
+        if (tokens.has()) {
+            tokens.advance();
+        }
     }
 
     Ast parse() throws ParseException {
-        if (match(Token.Type.NUMBER)) {
-            return new Ast.Number(new BigDecimal(tokens.get(-1).value()));
-        } else if (match(Token.Type.IDENTIFIER)) {
-            var identifier = tokens.get(-1).value();
-            return identifier.length() > 1 && identifier.charAt(0) == ':'
-                ? new Ast.Atom(identifier.substring(1))
-                : new Ast.Variable(identifier);
-        } else if (match(List.of("(", "["))) {
-            var open = tokens.get(-1).value();
-            var name = match(Token.Type.IDENTIFIER) ? tokens.get(-1).value() : "";
+        if (peek(Token.Type.NUMBER)) {
+            var position = lexer.position(tokens.get());
+            var number = lexer.number(tokens.get());
+            tokens.advance();
+            return new Ast.Number(number, position);
+        } else if (peek(Token.Type.IDENTIFIER)) {
+            var token = tokens.get();
+            var position = lexer.position(token);
+            tokens.advance();
+            return Token.length(token) > 1 && lexer.charAt(token, 0) == ':'
+                ? new Ast.Atom(lexer.name(token, 1), position)
+                : new Ast.Variable(lexer.name(token, 0), position);
+        } else if (peek('(') || peek('[')) {
+            var position = lexer.position(tokens.get());
+            var close = peek('(') ? ')' : ']';
+            tokens.advance();
+            var name = "";
+            if (peek(Token.Type.IDENTIFIER)) {
+                name = lexer.name(tokens.get(), 0);
+                tokens.advance();
+            }
             var arguments = new ArrayList<Ast>();
-            while (!match(open.equals("(") ? ")" : "]")) {
+            while (!match(close)) {
                 arguments.add(parse());
             }
-            return new Ast.Function(name, arguments);
-        } else if (tokens.has(0)) {
-            throw new ParseException("Expected an expression at token " + tokens.index + ", received " + tokens.get(0) + ".");
+            return new Ast.Function(name, arguments, position);
+        } else if (tokens.has()) {
+            throw new ParseException("Expected an expression, received " + lexer.token(tokens.get()) + ".", lexer.position(tokens.get()));
         } else {
-            throw new ParseException("Unexpected end of input at token " + tokens.index + ".");
+            throw new ParseException("Unexpected end of input.", lexer.position(Lexer.END));
         }
     }
 
-    private boolean peek(Object... objects) {
-        for (var i = 0; i < objects.length; i++) {
-            if (!tokens.has(i) || !test(objects[i], tokens.get(i))) {
-                return false;
-            }
-        }
-        return true;
+    private boolean peek(Token.Type type) {
+        return tokens.has() && Token.type(tokens.get()) == type;
+    }
+
+    private boolean peek(char operator) {
+        return tokens.has() && Token.length(tokens.get()) == 1 && lexer.charAt(tokens.get(), 0) == operator;
     }
 
-    private boolean match(Object... objects) {
-        var peek = peek(objects);
+    private boolean match(char operator) {
+        var peek = peek(operator);
         if (peek) {
-            tokens.advance(objects.length);
+            tokens.advance();
         }
         return peek;
     }
 
-    private static boolean test(Object object, Token token) {
-        return switch (object) {
-            case Token.Type type -> token.type() == type;
-            case String value -> token.value().equals(value);
-            case List<?> options -> options.stream().anyMatch(o -> test(o, token));
-            default -> throw new AssertionError(object);
-        };
-    }
-
+    /**
+     * Single token lookahead over the lexer.
+     */
     private static final class TokenStream {
 
-        private final List<Token> tokens;
+        private final Lexer lexer;
+        private long token = Lexer.END;
         private int index = 0;
 
-        private TokenStream(List<Token> tokens) {
-            this.tokens = tokens;
+        private TokenStream(Lexer lexer) {
+            this.lexer = lexer;
         }
 
-        public boolean has(int offset) {
-            return index + offset < tokens.size();
+        public boolean has() {
+            if (token == Lexer.END) {
+                token = lexer.next();
+            }
+            return token != Lexer.END;
         }
 
-        public Token get(int offset) {
-            if (!has(offset)) {
+        public long get() {
+            if (!has()) {
                 throw new IllegalArgumentException("Broken lexer invariant.");
             }
-            return tokens.get(index + offset);
+            return token;
         }
 
-        public void advance(int tokens) {
-            index += tokens;
+        public void advance() {
+            token = Lexer.END;
+            index++;
         }
 
     }
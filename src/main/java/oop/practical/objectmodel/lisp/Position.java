@@ -0,0 +1,39 @@
+package oop.practical.objectmodel.lisp;
+
+/**
+ * Source positions are packed into an int as the line (upper 20 bits) and
+ * column (lower 12 bits), both starting at 1, so tokens, asts and nodes can
+ * carry one without allocating. Lines and columns past the maximum are
+ * clamped to it. NONE (0) is the position of anything not parsed from
+ * source, such as asts constructed directly.
+ */
+public final class Position {
+
+    public static final int NONE = 0;
+
+    private static final int COLUMN_BITS = 12;
+    private static final int MAX_LINE = (1 << 32 - COLUMN_BITS) - 1;
+    private static final int MAX_COLUMN = (1 << COLUMN_BITS) - 1;
+
+    private Position() {}
+
+    public static int pack(int line, int column) {
+        return Math.clamp(line, 1, MAX_LINE) << COLUMN_BITS | Math.clamp(column, 1, MAX_COLUMN);
+    }
+
+    public static int line(int position) {
+        return position >>> COLUMN_BITS;
+    }
+
+    public static int column(int position) {
+        return position & MAX_COLUMN;
+    }
+
+    /**
+     * Returns the position as line:column, or ? for NONE.
+     */
+    public static String toString(int position) {
+        return position == NONE ? "?" : line(position) + ":" + column(position);
+    }
+
+}
@@ -1,5 +1,11 @@
 package oop.practical.objectmodel.lisp;
 
+/**
+ * Tokens are produced by the Lexer packed into a long (see pack) as the
+ * type and the range of the token in the lexer's buffer, so lexing does not
+ * allocate per token. This record is only materialized for display, such as
+ * in error messages.
+ */
 record Token(
     Type type,
     String value
@@ -11,4 +17,25 @@ record Token(
         OPERATOR,
     }
 
+    private static final Type[] TYPES = Type.values();
+
+    /**
+     * Packs the type (2 bits), start (31 bits) and length (31 bits).
+     */
+    static long pack(Type type, int start, int length) {
+        return (long) type.ordinal() << 62 | (long) start << 31 | length;
+    }
+
+    static Type type(long token) {
+        return TYPES[(int) (token >>> 62)];
+    }
+
+    static int start(long token) {
+        return (int) (token >>> 31) & Integer.MAX_VALUE;
+    }
+
+    static int length(long token) {
+        return (int) token & Integer.MAX_VALUE;
+    }
+
 }
@@ -0,0 +1,72 @@
+package oop.practical.objectmodel;
+
+import oop.practical.objectmodel.interpreter.Interpreter;
+import oop.practical.objectmodel.lisp.Lisp;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.List;
+
+public class ServerTests {
+
+    private Server server;
+    private Thread thread;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        var global = new Interpreter();
+        Assertions.assertDoesNotThrow(() -> global.visit(Lisp.parse("(def (loop) (loop))")));
+        server = new Server(global, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), Duration.ofMillis(200));
+        thread = Thread.ofVirtual().start(() -> Assertions.assertDoesNotThrow(server::serve));
+    }
+
+    @AfterEach
+    public void teardown() throws IOException, InterruptedException {
+        server.close();
+        thread.join();
+    }
+
+    @Test
+    public void testSession() throws IOException {
+        Assertions.assertEquals(List.of("3", "1", "1", "Error evaluating expression at 1:21: Undefined variable y."), session("(+ 1 2) (def x 1) x y"));
+    }
+
+    @Test
+    public void testIsolated() throws IOException {
+        Assertions.assertEquals(List.of("1"), session("(def x 1)"));
+        Assertions.assertEquals(List.of("Error evaluating expression at 1:1: Undefined variable x."), session("x"));
+    }
+
+    @Test
+    public void testParseError() throws IOException {
+        Assertions.assertEquals(List.of("Error parsing input at 1:4: Expected an expression, received Token[type=OPERATOR, value=]]."), session("(f ]"));
+    }
+
+    @Test
+    public void testTimeout() throws IOException {
+        Assertions.assertEquals(List.of("Error evaluating expression: Timed out after 200ms.", "2"), session("(loop) (+ 1 1)"));
+    }
+
+    /**
+     * Sends the input followed by exit, returning the responses.
+     */
+    private List<String> session(String input) throws IOException {
+        var address = (InetSocketAddress) server.getAddress();
+        try (var socket = new Socket(address.getAddress(), address.getPort())) {
+            var output = new PrintWriter(socket.getOutputStream(), true);
+            output.println(input + " exit");
+            return new BufferedReader(new InputStreamReader(socket.getInputStream())).lines().toList();
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+package oop.practical.objectmodel.interpreter;
+
+import oop.practical.objectmodel.lisp.Lisp;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+public class ImageTests {
+
+    @TempDir
+    Path directory;
+
+    @ParameterizedTest
+    @MethodSource
+    public void testRestore(String name, String prelude, String input, String expected) {
+        var interpreter = new Interpreter();
+        Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("(do " + prelude + ")")));
+        var path = directory.resolve("image");
+        Assertions.assertDoesNotThrow(() -> interpreter.snapshot(path));
+        var restored = Assertions.assertDoesNotThrow(() -> Interpreter.restore(path));
+        var result = Assertions.assertDoesNotThrow(() -> restored.visit(Lisp.parse("(do " + input + ")")));
+        Assertions.assertEquals(expected, result.toString());
+    }
+
+    private static Stream<Arguments> testRestore() {
+        return Stream.of(
+            Arguments.of("Values", """
+                (def x 1) (def y 1.5) (def z :atom) (def w null)
+                """, """
+                (object [x x] [y y] [z z] [w w])
+                """, "(object [x 1] [y 1.5] [z :atom] [w null])"),
+            Arguments.of("Builtins", "", """
+                (- (* 2 (+ 1 2)) (/ 4 2))
+                """, "4"),
+            Arguments.of("Function", """
+                (def (square x) (* x x))
+                """, """
+                (square 3)
+                """, "9"),
+            Arguments.of("Closure", """
+                (def (adder n) (do (def (add x) (+ x n)) add))
+                (def add5 (adder 5))
+                """, """
+                (add5 1)
+                """, "6"),
+            Arguments.of("Prototype", """
+                (def Base (object Base [(.method) field]))
+                (def child (object [prototype Base] [field 1]))
+                """, """
+                (object [method (.method child)] [instance (.instance? child Base)])
+                """, "(object [method 1] [instance :true])"),
+            Arguments.of("Shared", """
+                (def a (object [field 1]))
+                (def b a)
+                """, """
+                (.field= b 2)
+                (.field a)
+                """, "2"),
+            Arguments.of("Cycle", """
+                (def a (object [field 1]))
+                (.self= a a)
+                """, """
+                (.field (.self (.self a)))
+                """, "1")
+        );
+    }
+
+    @Test
+    public void testJavaFunction() {
+        var interpreter = new Interpreter();
+        interpreter.getScope().define("java", new RuntimeValue.Function("java", arguments -> new RuntimeValue.Primitive(null)));
+        Assertions.assertThrows(IOException.class, () -> interpreter.snapshot(directory.resolve("image")));
+    }
+
+}
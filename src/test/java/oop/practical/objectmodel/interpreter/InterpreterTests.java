@@ -1,12 +1,24 @@
 package oop.practical.objectmodel.interpreter;
 
 import oop.practical.objectmodel.lisp.Lisp;
+import oop.practical.objectmodel.lisp.ParseException;
+import oop.practical.objectmodel.lisp.Position;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class InterpreterTests {
@@ -24,7 +36,8 @@ public class InterpreterTests {
             BuiltinTests.testDo(),
             BuiltinTests.testSet(),
             ObjectTests.testObject(),
-            ObjectTests.testPrototype()
+            ObjectTests.testPrototype(),
+            ObjectTests.testInlineCache()
         ).flatMap(s -> s);
     }
 
@@ -76,7 +89,31 @@ public class InterpreterTests {
                     """, "0.5"),
                 Arguments.of("Div Multiple", """
                     (/ 2.0)
-                    """, "0.5")
+                    """, "0.5"),
+                Arguments.of("Div Inexact", """
+                    (/ 7 2)
+                    """, "3.5"),
+                Arguments.of("Div Zero", """
+                    (/ 1 0)
+                    """, null),
+                Arguments.of("Add Overflow", """
+                    (+ 9223372036854775807 1)
+                    """, "9223372036854775808"),
+                Arguments.of("Mul Overflow", """
+                    (* 9223372036854775807 -2)
+                    """, "-18446744073709551614"),
+                Arguments.of("Mixed Decimal", """
+                    (* 1.5 2)
+                    """, "3.0"),
+                Arguments.of("Sub Overflow Partial", """
+                    (- -9223372036854775807 1 1)
+                    """, "-9223372036854775809"),
+                Arguments.of("Add Variadic", """
+                    (+ 1 2 3 4 5.5)
+                    """, "15.5"),
+                Arguments.of("Invalid Argument", """
+                    (+ 1 :atom)
+                    """, null)
             );
         }
 
@@ -134,13 +171,48 @@ public class InterpreterTests {
                     (def (add x y) (+ x y))
                     (add 1 2)
                     """, "3"),
+                Arguments.of("Function Closure", """
+                    (def (outer x)
+                        (do (def (inner y) (+ x y))
+                            (inner 2)))
+                    (outer 1)
+                    """, "3"),
+                Arguments.of("Function Shadowing", """
+                    (def x 1)
+                    (def (f x) x)
+                    (+ (f 2) x)
+                    """, "3"),
+                Arguments.of("Function Local", """
+                    (def x 1)
+                    (def (f) (do (def y x) (def x 2) (+ x y)))
+                    (+ (f) x)
+                    """, "4"),
+                Arguments.of("Function Local Set", """
+                    (def x 1)
+                    (def (f) (do (set! x 2) x))
+                    (+ (f) x)
+                    """, "3"),
+                Arguments.of("Function Many Parameters", """
+                    (def (add a b c d) (+ a b c d))
+                    (add 1 2 3 4)
+                    """, "10"),
+                Arguments.of("Function Arity", """
+                    (def (add x y) (+ x y))
+                    (add 1 2 3)
+                    """, null),
                 Arguments.of("Invalid", """
                     (def 1)
                     """, null),
                 Arguments.of("Redefined", """
                     (def x 1)
                     (def x 2)
-                    """, null)
+                    """, null),
+                Arguments.of("Hash Collision", """
+                    (def Aa 1)
+                    (def BB 2)
+                    (set! Aa 3)
+                    (+ Aa BB)
+                    """, "5")
             );
         }
 
@@ -197,6 +269,24 @@ public class InterpreterTests {
                     (.field= obj 2)
                     (.field obj)
                     """, "2"),
+                Arguments.of("Field Added", """
+                    (def a (object [x 1] [y 2]))
+                    (def b (object [x 3] [y 4]))
+                    (.z= b 5)
+                    (.x= a 6)
+                    (+ (.x a) (.z b))
+                    """, "11"),
+                Arguments.of("Field Order", """
+                    (def obj (object [x 1] [y 2]))
+                    (.z= obj 3)
+                    (.x= obj 4)
+                    obj
+                    """, "(object [x 4] [y 2] [z 3])"),
+                Arguments.of("Field Cyclic", """
+                    (def obj (object Name [x 1]))
+                    (.self= obj (object [parent obj]))
+                    obj
+                    """, "(object Name [x 1] [self (object [parent (object Name ...)])])"),
                 Arguments.of("Method", """
                     (object [(.method) 1])
                     (.method object)
@@ -242,10 +332,509 @@ public class InterpreterTests {
                     (def parent (object))
                     (def child (object [prototype parent]))
                     (.instance? child parent)
-                    """, ":true")
+                    """, ":true"),
+                Arguments.of("Cyclic", """
+                    (def parent (object))
+                    (def child (object [prototype parent]))
+                    (.prototype= parent child)
+                    """, null),
+                Arguments.of("Clone", """
+                    (def parent (object [(.method) field]))
+                    (def original (object Name [prototype parent] [field 1]))
+                    (def clone (.clone original))
+                    (.field= clone 2)
+                    (.other= clone 3)
+                    (object [original original] [clone clone] [method (.method clone)])
+                    """, "(object [original (object Name [prototype (object)] [field 1])] [clone (object Name [prototype (object)] [field 2] [other 3])] [method 2])"),
+                Arguments.of("Clone Field", """
+                    (.clone (object [clone 1]))
+                    """, "1")
             );
         }
 
+        @ParameterizedTest
+        @MethodSource
+        public void testInlineCache(String name, String input, String expected) {
+            test(input, expected);
+        }
+
+        public static Stream<Arguments> testInlineCache() {
+            return Stream.of(
+                Arguments.of("Polymorphic", """
+                    (def a (object [(.method) 1]))
+                    (def b (object [(.method) 2]))
+                    (def x (object [prototype a]))
+                    (def y (object [prototype b]))
+                    (def (call o) (.method o))
+                    (+ (call x) (call y) (call x))
+                    """, "4"),
+                Arguments.of("Prototype Changed", """
+                    (def a (object [(.method) 1]))
+                    (def b (object [(.method) 2]))
+                    (def child (object [prototype a]))
+                    (def (call o) (.method o))
+                    (call child)
+                    (.prototype= child b)
+                    (call child)
+                    """, "2"),
+                Arguments.of("Ancestor Field Defined", """
+                    (def grandparent (object [field 1]))
+                    (def parent (object [prototype grandparent]))
+                    (def child (object [prototype parent]))
+                    (def (get o) (.field o))
+                    (get child)
+                    (.field= parent 2)
+                    (get child)
+                    """, "2"),
+                Arguments.of("Inherit Method Arguments", """
+                    (def parent (object [(.add a b c) (+ value a b c)]))
+                    (def child (object [prototype parent] [value 1]))
+                    (def (add o) (.add o 2 3 4))
+                    (+ (add child) (.add child 2 3 4))
+                    """, "20")
+            );
+        }
+
+    }
+
+    @Nested
+    class ShapeTests {
+
+        /**
+         * Shapes share their keys and index with their first child, which
+         * must not affect the shape itself or its other children.
+         */
+        @Test
+        public void testBranches() {
+            var shape = Shape.ROOT;
+            for (int i = 0; i < 12; i++) {
+                shape = shape.with("k" + i);
+            }
+            var first = shape.with("a");
+            var second = shape.with("b");
+            var third = first.with("c");
+            Assertions.assertSame(first, shape.with("a"));
+            Assertions.assertEquals(-1, shape.indexOf("a"));
+            Assertions.assertEquals(12, first.indexOf("a"));
+            Assertions.assertEquals(-1, first.indexOf("b"));
+            Assertions.assertEquals(12, second.indexOf("b"));
+            Assertions.assertEquals(-1, second.indexOf("a"));
+            Assertions.assertEquals(13, third.indexOf("c"));
+            Assertions.assertEquals(5, third.indexOf("k5"));
+            Assertions.assertEquals("b", second.key(12));
+            Assertions.assertEquals("a", third.key(12));
+        }
+
+        @Test
+        public void testSmall() {
+            var shape = Shape.ROOT.with("x").with("y");
+            var other = Shape.ROOT.with("x").with("z");
+            Assertions.assertEquals(1, shape.indexOf("y"));
+            Assertions.assertEquals(-1, shape.indexOf("z"));
+            Assertions.assertEquals(1, other.indexOf("z"));
+            Assertions.assertEquals(-1, other.indexOf("y"));
+        }
+
+    }
+
+    @Nested
+    class PrinterTests {
+
+        @Test
+        public void testCache() {
+            var interpreter = new Interpreter();
+            var outer = Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("""
+                (do
+                  (def inner (object [x 1]))
+                  (object [inner inner]))
+                """)));
+            Assertions.assertEquals("(object [inner (object [x 1])])", outer.toString());
+            Assertions.assertSame(outer.toString(), outer.toString());
+            Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("(.x= inner 2)")));
+            Assertions.assertEquals("(object [inner (object [x 2])])", outer.toString());
+        }
+
+        /**
+         * The cached rendering of second (printed first) can't be reused
+         * when printing first, as first is then being printed.
+         */
+        @Test
+        public void testCacheCyclic() {
+            var interpreter = new Interpreter();
+            var first = Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("""
+                (do
+                  (def first (object First))
+                  (def second (object Second [first first]))
+                  (.second= first second)
+                  first)
+                """)));
+            var second = Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("second")));
+            Assertions.assertEquals("(object Second [first (object First [second (object Second ...)])])", second.toString());
+            Assertions.assertEquals("(object First [second (object Second [first (object First ...)])])", first.toString());
+        }
+
+        @Test
+        public void testPrint() {
+            var value = Assertions.assertDoesNotThrow(() -> new Interpreter().visit(Lisp.parse("(object Name [x 1] [y :atom] [(.method) x])")));
+            var builder = new StringBuilder();
+            Assertions.assertDoesNotThrow(() -> value.print(builder));
+            Assertions.assertEquals("(object Name [x 1] [y :atom])", builder.toString());
+        }
+
+    }
+
+    @Nested
+    class PositionTests {
+
+        @Test
+        public void testVariable() {
+            var ast = Assertions.assertDoesNotThrow(() -> Lisp.parse("(do\n  (def x 1)\n  (+ x y))"));
+            var exception = Assertions.assertThrows(EvaluateException.class, () -> new Interpreter().visit(ast));
+            Assertions.assertEquals("3:3", Position.toString(exception.getPosition()));
+        }
+
+        @Test
+        public void testTopLevel() {
+            var ast = Assertions.assertDoesNotThrow(() -> Lisp.parse("\n  y"));
+            var exception = Assertions.assertThrows(EvaluateException.class, () -> new Interpreter().visit(ast));
+            Assertions.assertEquals("2:3", Position.toString(exception.getPosition()));
+        }
+
+        /**
+         * The failing method call is in tail position, so it is evaluated by
+         * the closure rather than its node.
+         */
+        @Test
+        public void testTailCall() {
+            var interpreter = new Interpreter();
+            Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("(def (f o)\n  (.missing o 1))")));
+            var exception = Assertions.assertThrows(EvaluateException.class, () -> interpreter.visit(Lisp.parse("(f Object)")));
+            Assertions.assertEquals("Undefined method .missing.", exception.getMessage());
+            Assertions.assertEquals("2:3", Position.toString(exception.getPosition()));
+        }
+
+    }
+
+    @Nested
+    class ParallelTests {
+
+        private static final String SQUARE = "(def (square x) (* x x))";
+
+        @Test
+        public void testResult() {
+            try (var pool = new ForkJoinPool(4)) {
+                var interpreter = new Interpreter().parallel(pool);
+                Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse(SQUARE)));
+                var ast = Assertions.assertDoesNotThrow(() -> Lisp.parse("(+ (square 3) (* (square 4) (square 5)) (- (square 6) 1))"));
+                Assertions.assertInstanceOf(Node.Parallel.class, Scheduler.rewrite(Compiler.compile(ast), pool));
+                Assertions.assertEquals("444", Assertions.assertDoesNotThrow(() -> interpreter.visit(ast)).toString());
+            }
+        }
+
+        @Test
+        public void testImpure() {
+            try (var pool = new ForkJoinPool(4)) {
+                var ast = Assertions.assertDoesNotThrow(() -> Lisp.parse("(+ (def y 1) (square 2))"));
+                Assertions.assertInstanceOf(Node.Call.class, Scheduler.rewrite(Compiler.compile(ast), pool));
+                var setter = Assertions.assertDoesNotThrow(() -> Lisp.parse("(+ (.x= o 1) (square 2))"));
+                Assertions.assertInstanceOf(Node.Call.class, Scheduler.rewrite(Compiler.compile(setter), pool));
+            }
+        }
+
+        /**
+         * Setters in functions called by the arguments are only found at
+         * runtime, so the arguments are evaluated again sequentially.
+         */
+        @Test
+        public void testSetter() {
+            try (var pool = new ForkJoinPool(4)) {
+                var interpreter = new Interpreter().parallel(pool);
+                Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("""
+                    (do
+                      (def o (object [x 0]))
+                      (def (bump v) (.x= o (+ (.x o) v))))
+                    """)));
+                Assertions.assertEquals("12", Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("(+ (bump 1) (bump 10))"))).toString());
+                Assertions.assertEquals("11", Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("(.x o)"))).toString());
+            }
+        }
+
+        /**
+         * The exception is that of the first failing argument, as when
+         * evaluated sequentially.
+         */
+        @Test
+        public void testException() {
+            try (var pool = new ForkJoinPool(4)) {
+                var interpreter = new Interpreter().parallel(pool);
+                Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse(SQUARE)));
+                var ast = Assertions.assertDoesNotThrow(() -> Lisp.parse("(+ (square 1) (first 2) (second 3))"));
+                var exception = Assertions.assertThrows(EvaluateException.class, () -> interpreter.visit(ast));
+                Assertions.assertEquals("Undefined function first.", exception.getMessage());
+                Assertions.assertEquals("1:15", Position.toString(exception.getPosition()));
+            }
+        }
+
+        /**
+         * The call to loop in the method is in tail position, so it must
+         * still run in constant stack when its arguments are parallel.
+         */
+        @Test
+        public void testTailCall() {
+            try (var pool = new ForkJoinPool(4)) {
+                var interpreter = new Interpreter().parallel(pool);
+                var done = Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("(object [(.next n) n])")));
+                var more = Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("(object [(.next n) (loop (+ n 1) (step (+ n 1)))])")));
+                interpreter.getScope().define("step", new RuntimeValue.Function("step", arguments ->
+                    ((RuntimeValue.Integer) arguments.getFirst()).value() == 20_000 ? done : more
+                ));
+                Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("(def (loop n s) (.next s n))")));
+                Assertions.assertEquals("20000", Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("(loop 0 (step 0))"))).toString());
+            }
+        }
+
+    }
+
+    @Nested
+    class TailCallTests {
+
+        /**
+         * The language has no conditionals, so the loop terminates through
+         * dispatch on the object returned by step, which is :done at the
+         * last iteration.
+         */
+        @Test
+        public void testLoop() {
+            var interpreter = new Interpreter();
+            var done = Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("(object [(.next n) n])")));
+            var more = Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("(object [(.next n) (do n (loop (+ n 1)))])")));
+            interpreter.getScope().define("step", new RuntimeValue.Function("step", arguments ->
+                ((RuntimeValue.Integer) arguments.getFirst()).value() == 1_000_000 ? done : more
+            ));
+            var ast = Assertions.assertDoesNotThrow(() -> Lisp.parse("""
+                (do
+                  (def (loop n) (.next (step n) n))
+                  (loop 0))
+                """));
+            var result = Assertions.assertDoesNotThrow(() -> interpreter.visit(ast));
+            Assertions.assertEquals("1000000", result.toString());
+        }
+
+    }
+
+    @Nested
+    class TieredTests {
+
+        /**
+         * Calls f until it is compiled (see HandleCompiler), then redefines
+         * the global it calls, which must no longer be bound.
+         */
+        @Test
+        public void testRedefined() {
+            var interpreter = new Interpreter();
+            Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("""
+                (do
+                  (def (square x) (* x x))
+                  (def (cube x) (* x x x))
+                  (def (f x) (do (square x) (+ (square x) 1))))
+                """)));
+            var call = Assertions.assertDoesNotThrow(() -> Lisp.parse("(f 3)"));
+            for (int i = 0; i < 2 * HandleCompiler.THRESHOLD; i++) {
+                Assertions.assertEquals("10", Assertions.assertDoesNotThrow(() -> interpreter.visit(call)).toString());
+            }
+            Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("(set! square cube)")));
+            Assertions.assertEquals("28", Assertions.assertDoesNotThrow(() -> interpreter.visit(call)).toString());
+        }
+
+        @Test
+        public void testContext() {
+            var global = new Interpreter();
+            Assertions.assertDoesNotThrow(() -> global.visit(Lisp.parse("(def (f x) (+ (g x) 1))")));
+            Assertions.assertDoesNotThrow(() -> global.visit(Lisp.parse("(def (g x) x)")));
+            var context = global.context();
+            var call = Assertions.assertDoesNotThrow(() -> Lisp.parse("(f 1)"));
+            for (int i = 0; i < 2 * HandleCompiler.THRESHOLD; i++) {
+                Assertions.assertEquals("2", Assertions.assertDoesNotThrow(() -> context.visit(call)).toString());
+            }
+            //f is resolved from the global scope, so g is not shadowed
+            Assertions.assertDoesNotThrow(() -> context.visit(Lisp.parse("(def (g x) 0)")));
+            Assertions.assertEquals("2", Assertions.assertDoesNotThrow(() -> context.visit(call)).toString());
+        }
+
+        @Test
+        public void testUndefined() {
+            var interpreter = new Interpreter();
+            Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("(def (f x) (+ (g x) 1))")));
+            var call = Assertions.assertDoesNotThrow(() -> Lisp.parse("(f 1)"));
+            for (int i = 0; i < 2 * HandleCompiler.THRESHOLD; i++) {
+                Assertions.assertThrows(EvaluateException.class, () -> interpreter.visit(call));
+            }
+            Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("(def (g x) x)")));
+            Assertions.assertEquals("2", Assertions.assertDoesNotThrow(() -> interpreter.visit(call)).toString());
+        }
+
+    }
+
+    @Nested
+    class ProfilerTests {
+
+        @Test
+        public void testProfile() {
+            var interpreter = new Interpreter();
+            Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("""
+                (do
+                  (def (square x) (* x x))
+                  (def (f x) (+ (square x) (square x)))
+                  (def parent (object [(.method x) (f x)]))
+                  (def child (object [prototype parent]))
+                  (def (g o) (.method o 3)))
+                """)));
+            Profiler.INSTANCE.reset();
+            Profiler.INSTANCE.setEnabled(true);
+            try {
+                var call = Assertions.assertDoesNotThrow(() -> Lisp.parse("(g child)"));
+                for (int i = 0; i < 10; i++) {
+                    Assertions.assertEquals("18", Assertions.assertDoesNotThrow(() -> interpreter.visit(call)).toString());
+                }
+            } finally {
+                Profiler.INSTANCE.setEnabled(false);
+            }
+            var functions = Profiler.INSTANCE.getFunctions().stream().collect(Collectors.toMap(Profiler.Statistics::name, s -> s));
+            Assertions.assertEquals(10, functions.get("g").calls());
+            Assertions.assertEquals(10, functions.get("f").calls());
+            Assertions.assertEquals(20, functions.get("square").calls());
+            Assertions.assertEquals(20, functions.get("*").calls());
+            Assertions.assertTrue(functions.get("f").inclusive().total() >= functions.get("f").exclusive().total());
+            var method = Profiler.INSTANCE.getMethods().getFirst();
+            Assertions.assertEquals(".method", method.name());
+            Assertions.assertEquals(10, method.calls());
+            Assertions.assertEquals(10, method.lookups());
+            Assertions.assertEquals(1.0, method.meanLookupDepth());
+            Assertions.assertEquals(0.9, method.cacheHitRate());
+            Assertions.assertTrue(Profiler.INSTANCE.dump().contains("square"));
+        }
+
+        /**
+         * Defining a field in an object that is not a prototype, as setters
+         * building objects do, does not invalidate other call sites.
+         */
+        @Test
+        public void testUnrelatedSetter() {
+            var interpreter = new Interpreter();
+            Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("""
+                (do
+                  (def parent (object [(.method) 1]))
+                  (def child (object [prototype parent]))
+                  (def (g o) (do (.field= (object [x 1]) 2) (.method o))))
+                """)));
+            Profiler.INSTANCE.reset();
+            Profiler.INSTANCE.setEnabled(true);
+            try {
+                var call = Assertions.assertDoesNotThrow(() -> Lisp.parse("(g child)"));
+                for (int i = 0; i < 10; i++) {
+                    Assertions.assertEquals("1", Assertions.assertDoesNotThrow(() -> interpreter.visit(call)).toString());
+                }
+            } finally {
+                Profiler.INSTANCE.setEnabled(false);
+            }
+            var method = Profiler.INSTANCE.getMethods().stream().filter(s -> s.name().equals(".method")).findFirst().orElseThrow();
+            Assertions.assertEquals(10, method.lookups());
+            Assertions.assertEquals(0.9, method.cacheHitRate());
+        }
+
+        @Test
+        public void testSample() throws IOException {
+            var interpreter = new Interpreter();
+            var done = Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("(object [(.next n) n])")));
+            var more = Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("(object [(.next n) (do n (loop (+ n 1)))])")));
+            interpreter.getScope().define("step", new RuntimeValue.Function("step", arguments ->
+                ((RuntimeValue.Integer) arguments.getFirst()).value() == 1_000_000 ? done : more
+            ));
+            var ast = Assertions.assertDoesNotThrow(() -> Lisp.parse("""
+                (do
+                  (def (loop n) (.next (step n) n))
+                  (loop 0))
+                """));
+            var output = new StringBuilder();
+            try (var sampler = new Sampler(Duration.ofMillis(1))) {
+                Assertions.assertEquals("1000000", Assertions.assertDoesNotThrow(() -> interpreter.visit(ast)).toString());
+                sampler.stop();
+                sampler.write(output);
+            }
+            var lines = output.toString().lines().toList();
+            Assertions.assertFalse(lines.isEmpty());
+            Assertions.assertTrue(lines.stream().allMatch(line -> line.matches(".+ \\d+")), output::toString);
+            Assertions.assertTrue(lines.stream().anyMatch(line -> line.contains("loop") || line.contains(".next")), output::toString);
+        }
+
+    }
+
+    @Nested
+    class ContextTests {
+
+        @Test
+        public void testLocal() {
+            var global = new Interpreter();
+            Assertions.assertDoesNotThrow(() -> global.visit(Lisp.parse("(def x 1)")));
+            var first = global.context();
+            var second = global.context();
+            Assertions.assertDoesNotThrow(() -> first.visit(Lisp.parse("(set! x 2)")));
+            Assertions.assertEquals("2", Assertions.assertDoesNotThrow(() -> first.visit(Lisp.parse("x"))).toString());
+            Assertions.assertEquals("1", Assertions.assertDoesNotThrow(() -> second.visit(Lisp.parse("x"))).toString());
+            Assertions.assertThrows(IllegalStateException.class, () -> global.visit(Lisp.parse("(def y 1)")));
+        }
+
+        @Test
+        public void testFork() {
+            var interpreter = new Interpreter();
+            Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("(do (def x 1) (def o (object [y 1])))")));
+            var fork = interpreter.fork();
+            Assertions.assertDoesNotThrow(() -> fork.visit(Lisp.parse("(do (set! x 2) (def z 3) (.y= o 2))")));
+            Assertions.assertEquals("2", Assertions.assertDoesNotThrow(() -> fork.visit(Lisp.parse("x"))).toString());
+            Assertions.assertEquals("1", Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("x"))).toString());
+            Assertions.assertThrows(EvaluateException.class, () -> interpreter.visit(Lisp.parse("z")));
+            Assertions.assertEquals("2", Assertions.assertDoesNotThrow(() -> interpreter.visit(Lisp.parse("(.y o)"))).toString());
+        }
+
+        /**
+         * Each thread calls methods through the prototype chain of shared
+         * objects while also adding fields to them, which invalidates the
+         * shared inline caches of the compiled method bodies.
+         */
+        @Test
+        public void testConcurrent() throws InterruptedException {
+            var global = new Interpreter();
+            Assertions.assertDoesNotThrow(() -> global.visit(Lisp.parse("""
+                (do
+                  (def Base (object [(.value) 1]))
+                  (def shared (object [prototype Base]))
+                  (def (sum o) (+ (.value o) (.value o))))
+                """)));
+            var threads = new Thread[4];
+            var failures = new ConcurrentLinkedQueue<Throwable>();
+            for (int i = 0; i < threads.length; i++) {
+                var context = global.context();
+                var id = i;
+                threads[i] = new Thread(() -> {
+                    try {
+                        for (int j = 0; j < 1_000; j++) {
+                            var result = context.visit(Lisp.parse("(do (.field" + id + "_" + j + "= shared " + j + ") (sum shared))"));
+                            Assertions.assertEquals("2", result.toString());
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assertions.assertEquals(List.of(), List.copyOf(failures));
+            var fields = Assertions.assertDoesNotThrow(() -> global.visit(Lisp.parse("shared")));
+            Assertions.assertEquals(1 + 4 * 1_000, ((RuntimeValue.Object) fields).scope().collect(true).size());
+        }
+
     }
 
     static void test(String input, String expected) {
@@ -258,4 +847,95 @@ public class InterpreterTests {
         }
     }
 
+    @Nested
+    class NodeCacheTests {
+
+        @Test
+        public void testReuse() throws ParseException {
+            var cache = new NodeCache(2);
+            var ast = Lisp.parse("(f x)");
+            var compiled = new int[] {0};
+            var node = cache.get(ast, a -> {
+                compiled[0]++;
+                return Compiler.compile(a);
+            });
+            Assertions.assertSame(node, cache.get(ast, Compiler::compile));
+            Assertions.assertNotSame(node, cache.get(Lisp.parse("(f x)"), Compiler::compile));
+            Assertions.assertEquals(1, compiled[0]);
+        }
+
+        @Test
+        public void testCapacity() throws ParseException {
+            var cache = new NodeCache(1);
+            var ast = Lisp.parse("1");
+            var node = cache.get(ast, Compiler::compile);
+            cache.get(Lisp.parse("2"), Compiler::compile);
+            Assertions.assertNotSame(node, cache.get(ast, Compiler::compile));
+        }
+
+        @Test
+        public void testEvaluate() throws ParseException, EvaluateException {
+            var interpreter = new Interpreter().cached(16);
+            interpreter.visit(Lisp.parse("(def o (object [x 0]))"));
+            var ast = Lisp.parse("(.x= o (+ (.x o) 1))");
+            for (int i = 1; i <= 3; i++) {
+                Assertions.assertEquals(String.valueOf(i), interpreter.visit(ast).toString());
+            }
+        }
+
+    }
+
+    @Nested
+    class BatchTests {
+
+        @Test
+        public void testBatch() throws InterruptedException {
+            var inputs = List.of("(def x 1)", "(+ x 1)", "(f ]", "(/ x 0)", "(def (f y) (* y 2))", "(f 3)");
+            var results = new ArrayList<Interpreter.Result>();
+            try (var parsers = Executors.newFixedThreadPool(2)) {
+                new Interpreter().batch(inputs.iterator(), parsers, 2, results::add);
+            }
+            Assertions.assertEquals(inputs.size(), results.size());
+            Assertions.assertEquals("1", results.get(0).value().toString());
+            Assertions.assertEquals("2", results.get(1).value().toString());
+            Assertions.assertInstanceOf(ParseException.class, results.get(2).error());
+            Assertions.assertInstanceOf(EvaluateException.class, results.get(3).error());
+            Assertions.assertEquals("6", results.get(5).value().toString());
+        }
+
+        /**
+         * Inputs are only read once there is room to parse them, so at most
+         * capacity inputs are read ahead of the one being evaluated.
+         */
+        @Test
+        public void testBackpressure() throws InterruptedException {
+            var read = new int[] {0};
+            var inputs = new Iterator<String>() {
+
+                @Override
+                public boolean hasNext() {
+                    return read[0] < 100;
+                }
+
+                @Override
+                public String next() {
+                    return "(+ " + read[0]++ + " 1)";
+                }
+
+            };
+            var results = new ArrayList<Interpreter.Result>();
+            try (var parsers = Executors.newFixedThreadPool(2)) {
+                new Interpreter().batch(inputs, parsers, 4, result -> {
+                    Assertions.assertTrue(read[0] <= results.size() + 4);
+                    results.add(result);
+                });
+            }
+            for (int i = 0; i < results.size(); i++) {
+                Assertions.assertEquals(String.valueOf(i + 1), results.get(i).value().toString());
+            }
+            Assertions.assertEquals(100, results.size());
+        }
+
+    }
+
 }
@@ -0,0 +1,71 @@
+package oop.practical.objectmodel.interpreter;
+
+import oop.practical.objectmodel.lisp.Ast;
+import oop.practical.objectmodel.lisp.Lisp;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.util.stream.Stream;
+
+public class OptimizerTests {
+
+    @ParameterizedTest
+    @MethodSource
+    public void testOptimize(String name, String input, String expected) {
+        var optimized = Optimizer.optimize(Assertions.assertDoesNotThrow(() -> Lisp.parse(input)));
+        Assertions.assertEquals(Assertions.assertDoesNotThrow(() -> Lisp.parse(expected)), optimized);
+    }
+
+    private static Stream<Arguments> testOptimize() {
+        return Stream.of(
+            Arguments.of("Fold", "(+ 1 2 3)", "6"),
+            Arguments.of("Nested", "(* (+ 1 2) (- 10 4))", "18"),
+            Arguments.of("Decimal", "(/ 1 4)", "0.25"),
+            Arguments.of("Partial", "(+ x (* 2 3))", "(+ x 6)"),
+            Arguments.of("Division By Zero", "(/ 1 0)", "(/ 1 0)"),
+            Arguments.of("Invalid Argument", "(+ 1 :a)", "(+ 1 :a)"),
+            Arguments.of("Shadowed Builtin", "(do (def (f +) (+ 1 2)) (f -))", "(do (def (f +) (+ 1 2)) (f -))"),
+            Arguments.of("Dead Literals", "(do 1 (f) :a (do (g) 2) (h))", "(do (f) (g) (h))"),
+            Arguments.of("Single Expression", "(do 1 (f))", "(f)"),
+            Arguments.of("Empty Last", "(do (f) (do))", "(do (f) (do))"),
+            Arguments.of("Inline", "(do (def n 10) (def (f x) (* x (+ n 1))))", "(do (def n 10) (def (f x) (* x 11)))"),
+            Arguments.of("Inline After Def", "(do (def (f) n) (def n 1) n)", "(do (def (f) n) (def n 1) 1)"),
+            Arguments.of("Inline Set", "(do (def n 1) (set! n 2) n)", "(do (def n 1) (set! n 2) n)"),
+            Arguments.of("Inline Field", "(do (def n 1) (object [n 2] [(.m) n]))", "(do (def n 1) (object [n 2] [(.m) n]))"),
+            Arguments.of("Inline Parameter", "(do (def n 1) (def (f n) n))", "(do (def n 1) (def (f n) n))")
+        );
+    }
+
+    /**
+     * The optimized program evaluates to the same value, or fails with the
+     * same message, as the program itself.
+     */
+    @ParameterizedTest
+    @MethodSource
+    public void testSemantics(String name, String input) {
+        var ast = Assertions.assertDoesNotThrow(() -> Lisp.parse(input));
+        Assertions.assertEquals(evaluate(ast), evaluate(Optimizer.optimize(ast)));
+    }
+
+    private static Stream<Arguments> testSemantics() {
+        return Stream.of(
+            Arguments.of("Arithmetic", "(+ (* 3 4 5) (- 100 7 2) (/ 144 12) (* 1.5 2.5) (/ 1 3))"),
+            Arguments.of("Overflow", "(* 9223372036854775807 2)"),
+            Arguments.of("Division By Zero", "(do (def x 1) (/ x 0))"),
+            Arguments.of("Undefined", "(do (def (f) n) (f) (def n 1))"),
+            Arguments.of("Redefined", "(do (def null 1) null)"),
+            Arguments.of("Functions", "(do (def n 2) (def (f x) (* x (+ n 1) (/ 1 2))) (f 3))")
+        );
+    }
+
+    private static String evaluate(Ast ast) {
+        try {
+            return new Interpreter().visit(ast).toString();
+        } catch (EvaluateException e) {
+            return "Error: " + e.getMessage();
+        }
+    }
+
+}
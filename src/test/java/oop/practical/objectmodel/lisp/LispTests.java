@@ -0,0 +1,278 @@
+package oop.practical.objectmodel.lisp;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class LispTests {
+
+    @Nested
+    class FormsTests {
+
+        @ParameterizedTest
+        @MethodSource
+        public void testForms(String name, String input, List<Ast> expected) {
+            var forms = Lisp.forms(new StringReader(input));
+            var actual = new ArrayList<Ast>();
+            Assertions.assertDoesNotThrow(() -> {
+                for (Ast ast; (ast = forms.next()) != null; ) {
+                    actual.add(ast);
+                }
+            });
+            Assertions.assertEquals(expected, actual);
+        }
+
+        private static Stream<Arguments> testForms() {
+            return Stream.of(
+                Arguments.of("Empty", "", List.of()),
+                Arguments.of("Multiple", "1 :atom x", List.of(
+                    new Ast.Number(new BigDecimal("1")),
+                    new Ast.Atom("atom"),
+                    new Ast.Variable("x")
+                )),
+                Arguments.of("Multiline", "(+ 1\n   2)\n(f)", List.of(
+                    new Ast.Function("+", List.of(new Ast.Number(new BigDecimal("1")), new Ast.Number(new BigDecimal("2")))),
+                    new Ast.Function("f", List.of())
+                ))
+            );
+        }
+
+        @Test
+        public void testRecovery() throws Exception {
+            var forms = Lisp.forms(new StringReader(") x"));
+            Assertions.assertThrows(ParseException.class, forms::next);
+            Assertions.assertEquals(new Ast.Variable("x"), forms.next());
+            Assertions.assertNull(forms.next());
+        }
+
+        @Test
+        public void testIncremental() throws Exception {
+            // Yields the first form without reading past it, as when
+            // reading from an interactive stream.
+            var forms = Lisp.forms(new Reader() {
+                private final String input = "(f 1)";
+                private int index = 0;
+
+                @Override
+                public int read(char[] buffer, int offset, int length) {
+                    if (index == input.length()) {
+                        throw new AssertionError("Read past the first form.");
+                    }
+                    buffer[offset] = input.charAt(index++);
+                    return 1;
+                }
+
+                @Override
+                public void close() {}
+            });
+            Assertions.assertEquals(new Ast.Function("f", List.of(new Ast.Number(new BigDecimal("1")))), forms.next());
+        }
+
+        @Test
+        public void testLargeToken() throws Exception {
+            var name = "x".repeat(100_000);
+            var forms = Lisp.forms(new StringReader(name + " y"));
+            Assertions.assertEquals(new Ast.Variable(name), forms.next());
+            Assertions.assertEquals(new Ast.Variable("y"), forms.next());
+        }
+
+        @Test
+        public void testPosition() throws Exception {
+            // Offsets must account for the input discarded from the buffer
+            // while streaming the large token.
+            var forms = Lisp.forms(new StringReader("x".repeat(100_000) + "\n y\n\n  (f)"));
+            Assertions.assertEquals(Position.pack(1, 1), forms.next().position());
+            Assertions.assertEquals(Position.pack(2, 2), forms.next().position());
+            Assertions.assertEquals(Position.pack(4, 3), forms.next().position());
+        }
+
+    }
+
+    @Nested
+    class ParserTests {
+
+        @ParameterizedTest
+        @MethodSource
+        public void testParse(String name, String input, Ast expected) {
+            Assertions.assertEquals(expected, Assertions.assertDoesNotThrow(() -> Lisp.parse(input)));
+        }
+
+        private static Stream<Arguments> testParse() {
+            return Stream.of(
+                Arguments.of("Number", "-1.5e3", new Ast.Number(new BigDecimal("-1.5e3"))),
+                Arguments.of("Atom", ":name", new Ast.Atom("name")),
+                Arguments.of("Colon", ":", new Ast.Variable(":")),
+                Arguments.of("Function", "(f [g] :x)", new Ast.Function("f", List.of(
+                    new Ast.Function("g", List.of()),
+                    new Ast.Atom("x")
+                ))),
+                Arguments.of("Method", "[(.m x) 1]", new Ast.Function("", List.of(
+                    new Ast.Function(".m", List.of(new Ast.Variable("x"))),
+                    new Ast.Number(new BigDecimal("1"))
+                )))
+            );
+        }
+
+        @Test
+        public void testCharSequence() throws ParseException {
+            var input = new StringBuilder("(f x 1.5 :a)");
+            Assertions.assertEquals(Lisp.parse(input.toString()), Lisp.parse(input));
+        }
+
+        @Test
+        public void testInterned() throws ParseException {
+            var ast = (Ast.Function) Lisp.parse("(f x x :x)");
+            var first = (Ast.Variable) ast.arguments().get(0);
+            var second = (Ast.Variable) ast.arguments().get(1);
+            var atom = (Ast.Atom) ast.arguments().get(2);
+            Assertions.assertSame(first.name(), second.name());
+            Assertions.assertSame(first.name(), atom.name());
+        }
+
+        @Test
+        public void testUnexpected() {
+            var exception = Assertions.assertThrows(ParseException.class, () -> Lisp.parse("(f ]"));
+            Assertions.assertEquals("Expected an expression, received Token[type=OPERATOR, value=]].", exception.getMessage());
+            Assertions.assertEquals("1:4", Position.toString(exception.getPosition()));
+        }
+
+        @Test
+        public void testPosition() throws ParseException {
+            var ast = (Ast.Function) Lisp.parse("(f x\n  (g :y) 1)");
+            Assertions.assertEquals("1:1", Position.toString(ast.position()));
+            Assertions.assertEquals("1:4", Position.toString(ast.arguments().get(0).position()));
+            var call = (Ast.Function) ast.arguments().get(1);
+            Assertions.assertEquals("2:3", Position.toString(call.position()));
+            Assertions.assertEquals("2:6", Position.toString(call.arguments().getFirst().position()));
+            Assertions.assertEquals("2:10", Position.toString(ast.arguments().get(2).position()));
+        }
+
+    }
+
+    @Nested
+    class CacheTests {
+
+        @Test
+        public void testHit() throws ParseException {
+            var cache = Lisp.cache(10);
+            var ast = cache.parse("(f x)");
+            Assertions.assertSame(ast, cache.parse(new String("(f x)")));
+            Assertions.assertEquals(Lisp.parse("(f x)"), ast);
+            Assertions.assertEquals(1, cache.hits());
+            Assertions.assertEquals(1, cache.misses());
+        }
+
+        @Test
+        public void testEviction() throws ParseException {
+            var cache = Lisp.cache(1);
+            var first = cache.parse("1");
+            cache.parse("2");
+            Assertions.assertNotSame(first, cache.parse("1"));
+            Assertions.assertEquals(1, cache.size());
+            Assertions.assertEquals(2, cache.evictions());
+        }
+
+        @Test
+        public void testLeastRecentlyUsed() throws ParseException {
+            var cache = Lisp.cache(2);
+            cache.parse("1");
+            cache.parse("2");
+            cache.parse("1");
+            cache.parse("3");
+            cache.parse("1");
+            Assertions.assertEquals(2, cache.hits());
+            Assertions.assertEquals(1, cache.evictions());
+        }
+
+        @Test
+        public void testUnexpected() {
+            var cache = Lisp.cache(10);
+            Assertions.assertThrows(ParseException.class, () -> cache.parse("(f ]"));
+            Assertions.assertThrows(ParseException.class, () -> cache.parse("(f ]"));
+            Assertions.assertEquals(0, cache.size());
+            Assertions.assertEquals(2, cache.misses());
+        }
+
+    }
+
+    @Nested
+    class BinaryTests {
+
+        @TempDir
+        Path directory;
+
+        @ParameterizedTest
+        @MethodSource
+        public void testLoad(String name, String input) throws ParseException, IOException {
+            var ast = Lisp.parse(input);
+            var path = directory.resolve("ast");
+            Lisp.write(ast, path);
+            var loaded = Lisp.load(path);
+            Assertions.assertEquals(ast, loaded);
+            Assertions.assertEquals(positions(ast), positions(loaded));
+        }
+
+        private static Stream<Arguments> testLoad() {
+            return Stream.of(
+                Arguments.of("Number", "-1.50"),
+                Arguments.of("Big Number", "123456789012345678901234567890.123456789"),
+                Arguments.of("Atom", ":atom"),
+                Arguments.of("Variable", "variable"),
+                Arguments.of("Empty Function", "(f)"),
+                Arguments.of("Nested", "(do\n  (def (f x) (+ x 1))\n  (object [x 1] [(.m y) (f y)])\n  (f :a (g) 2))"),
+                Arguments.of("Long Boundary", "(f 9223372036854775807 9223372036854775808 -9223372036854775809)"),
+                Arguments.of("Long Arguments", "(f" + " (g 1000 :atom)".repeat(100) + ")"),
+                Arguments.of("Deep", "(f ".repeat(200) + "x" + ")".repeat(200))
+            );
+        }
+
+        private static List<String> positions(Ast ast) {
+            var positions = new ArrayList<String>();
+            positions.add(Position.toString(ast.position()));
+            if (ast instanceof Ast.Function function) {
+                function.arguments().forEach(argument -> positions.addAll(positions(argument)));
+            }
+            return positions;
+        }
+
+        @Test
+        public void testInterned() throws ParseException, IOException {
+            var path = directory.resolve("ast");
+            Lisp.write(Lisp.parse("(f x x :x)"), path);
+            var ast = (Ast.Function) Lisp.load(path);
+            var first = (Ast.Variable) ast.arguments().get(0);
+            var second = (Ast.Variable) ast.arguments().get(1);
+            var atom = (Ast.Atom) ast.arguments().get(2);
+            Assertions.assertSame(first.name(), second.name());
+            Assertions.assertSame(first.name(), atom.name());
+        }
+
+        @Test
+        public void testInvalid() throws ParseException, IOException {
+            var path = directory.resolve("ast");
+            Files.writeString(path, "(f x)");
+            Assertions.assertThrows(IOException.class, () -> Lisp.load(path));
+            Lisp.write(Lisp.parse("(f x)"), path);
+            var bytes = Files.readAllBytes(path);
+            Files.write(path, Arrays.copyOf(bytes, bytes.length - 1));
+            Assertions.assertThrows(IOException.class, () -> Lisp.load(path));
+        }
+
+    }
+
+}